@@ -0,0 +1,90 @@
+package kvpaxos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import paxos.Benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The apply path of a Server: applyOperation() on its own, and
+ * applyBatch() with the session table, for a batch of Puts over a key
+ * space of the given size. Both hold the server's mutex, as its apply
+ * loop does, since that loop keeps running alongside.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApplyBenchmark {
+    @Param({"1000", "100000"})
+    int keys;
+
+    @Param({"64"})
+    int batchSize;
+
+    Server server;
+    String[] names;
+    int next;
+    int opSeq;
+    int seq;
+
+    @Setup
+    public void setUp() {
+        server = new Server(new String[]{"127.0.0.1"}, new int[]{Benchmarks.freePort()}, 0);
+        names = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            names[i] = "key" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.Kill();
+    }
+
+    Op nextPut() {
+        String key = names[next];
+        next = next + 1 == keys ? 0 : next + 1;
+        return new Op("Put", 0, opSeq++, key, opSeq);
+    }
+
+    @Benchmark
+    public void applyOperation() {
+        server.mutex.lock();
+        try {
+            server.applyOperation(nextPut());
+        } finally {
+            server.mutex.unlock();
+        }
+    }
+
+    /**
+     * One instance worth of Puts; throughput is in batches.
+     */
+    @Benchmark
+    public void applyBatch() {
+        ArrayList<Op> ops = new ArrayList<Op>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            ops.add(nextPut());
+        }
+        server.mutex.lock();
+        try {
+            server.applyBatch(seq++, new Batch(ops));
+        } finally {
+            server.mutex.unlock();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package kvpaxos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import paxos.BinaryCodec;
+import paxos.ByteBuf;
+import paxos.MessageCodec;
+import paxos.Request;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trips of what the servers send each other: an Accept request whose
+ * value is a Batch of Puts, with KVCodec inside the binary Paxos codec or
+ * with Java serialization. The binary decode leaves the Batch as a
+ * Payload, as an acceptor does, unless decodeValue is set.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KVCodecBenchmark {
+    @Param({"binary", "java"})
+    String codec;
+
+    @Param({"1", "64"})
+    int batchSize;
+
+    @Param({"false", "true"})
+    boolean decodeValue;
+
+    MessageCodec messages;
+    ByteBuf buf;
+    Request accept;
+
+    @Setup
+    public void setUp() {
+        messages = codec.equals("binary") ? new BinaryCodec(KVCodec.INSTANCE) : MessageCodec.JAVA;
+        buf = new ByteBuf(1 << 16);
+        ArrayList<Op> ops = new ArrayList<Op>();
+        for (int i = 0; i < batchSize; i++) {
+            ops.add(new Op("Put", 17, 1000 + i, "key" + i, i));
+        }
+        accept = new Request(5000, 42, new Batch(ops), 1, 4990);
+    }
+
+    @Benchmark
+    public Object acceptRoundTrip() throws IOException {
+        buf.clear();
+        messages.encode(accept, buf);
+        Request req = (Request) messages.decode(buf);
+        if (decodeValue && req.value instanceof paxos.Payload) {
+            return ((paxos.Payload) req.value).decode(KVCodec.INSTANCE);
+        }
+        return req;
+    }
+}
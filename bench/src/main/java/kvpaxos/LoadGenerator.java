@@ -0,0 +1,311 @@
+package kvpaxos;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * End-to-end load against a kvpaxos cluster on localhost: starts the
+ * servers, runs client threads doing Gets and Puts on Zipfian keys, and
+ * prints throughput and latency percentiles every second and for the whole
+ * run.
+ * <p>
+ * With --rate 0 every client issues its next op as soon as the last one
+ * returns (closed loop). With --rate R the clients share a schedule of R
+ * ops a second (open loop) and an op's latency is counted from when it was
+ * due, so a stall shows up in every op it held back instead of in one.
+ * Closed-loop latencies are corrected the same way against the target
+ * interval between one client's ops given with --interval, in
+ * microseconds; without it they are not corrected. Both the corrected
+ * latency and the service time (send to reply) are reported. Values are
+ * random Integers, so there is no value size to configure.
+ * <p>
+ * Scenarios, on the last server and in terms of the measured time:
+ * <ul>
+ * <li>deaf: nobody can reach it for the middle third, as in TestAdvanced</li>
+ * <li>kill: it is killed after the first third</li>
+ * <li>forget: it is cut off both ways for the first two thirds, so its Done
+ * reaches nobody and no instance can be forgotten; then it rejoins, catches
+ * up, and the others forget what it held back</li>
+ * </ul>
+ * The "log" column is the most instances any live server holds.
+ *
+ *     java -cp bench/target/benchmarks.jar kvpaxos.LoadGenerator --servers 5 --clients 16 --rate 2000
+ */
+public class LoadGenerator {
+    static final int DEAF_PORT = 1; // nothing listens there
+
+    // options
+    int servers=3;
+    int clients=8;
+    int seconds=30; // measured
+    int warmup=5; // seconds before measuring
+    double getRatio=0.9;
+    int keys=10000;
+    double theta=0.99;
+    double rate=0; // ops/s of all clients together, 0 for a closed loop
+    long interval=0; // closed loop: expected microseconds between one client's ops, 0 for no correction
+    String scenario="none";
+    int basePort=1500;
+    long seed=1;
+    String hgrm; // file for the percentile distribution of the corrected latency, if any
+
+    Server[] kva;
+    String[] peers;
+    int[] ports; // shared by the servers and clients, so rewriting an entry makes that server deaf
+    int[] victimPorts; // the last server's own copy, so it can be cut off from the others too
+    Recorder service;
+    Recorder response;
+    LongAdder gets;
+    LongAdder puts;
+    LongAdder failedPuts;
+    volatile long scheduleFrom; // open loop: ops due before this are not made up for
+    volatile boolean stop;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator=new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+        System.exit(0);
+    }
+
+    void parse(String[] args){
+        for(int i=0;i<args.length;i+=2){
+            if(i+1==args.length){
+                usage("missing value for "+args[i]);
+            }
+            String value=args[i+1];
+            switch(args[i]){
+                case "--servers": this.servers=Integer.parseInt(value); break;
+                case "--clients": this.clients=Integer.parseInt(value); break;
+                case "--seconds": this.seconds=Integer.parseInt(value); break;
+                case "--warmup": this.warmup=Integer.parseInt(value); break;
+                case "--get-ratio": this.getRatio=Double.parseDouble(value); break;
+                case "--keys": this.keys=Integer.parseInt(value); break;
+                case "--theta": this.theta=Double.parseDouble(value); break;
+                case "--rate": this.rate=Double.parseDouble(value); break;
+                case "--interval": this.interval=Long.parseLong(value); break;
+                case "--scenario": this.scenario=value; break;
+                case "--base-port": this.basePort=Integer.parseInt(value); break;
+                case "--seed": this.seed=Long.parseLong(value); break;
+                case "--hgrm": this.hgrm=value; break;
+                default: usage("unknown option "+args[i]);
+            }
+        }
+        if(!this.scenario.matches("none|deaf|kill|forget")){
+            usage("unknown scenario "+this.scenario);
+        }
+        if(this.theta<0||this.theta>=1){
+            usage("--theta must be in [0, 1)");
+        }
+        if(this.interval<0){
+            usage("--interval must be >= 0");
+        }
+        if(!this.scenario.equals("none")&&this.servers<3){
+            usage("scenario "+this.scenario+" needs at least 3 servers");
+        }
+    }
+
+    static void usage(String error){
+        System.err.println(error);
+        System.err.println("options: --servers N --clients N --seconds N --warmup N --get-ratio F --keys N"
+                +" --theta F --rate OPS --interval US --scenario none|deaf|kill|forget --base-port N --seed N --hgrm FILE");
+        System.exit(2);
+    }
+
+    void run() throws InterruptedException, FileNotFoundException {
+        this.peers=new String[this.servers];
+        this.ports=new int[this.servers];
+        for(int i=0;i<this.servers;i++){
+            this.peers[i]="127.0.0.1";
+            this.ports[i]=this.basePort+i;
+        }
+        this.victimPorts=this.ports.clone();
+        this.kva=new Server[this.servers];
+        for(int i=0;i<this.servers;i++){
+            this.kva[i]=new Server(this.peers, i==this.servers-1?this.victimPorts:this.ports, i);
+        }
+        this.service=new Recorder(3);
+        this.response=new Recorder(3);
+        this.gets=new LongAdder();
+        this.puts=new LongAdder();
+        this.failedPuts=new LongAdder();
+
+        Thread[] workers=new Thread[this.clients];
+        for(int c=0;c<this.clients;c++){
+            int id=c;
+            workers[c]=new Thread(() -> work(id), "load-"+c);
+            workers[c].setDaemon(true);
+            workers[c].start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.warmup));
+        // whatever the clients fell behind during warmup is not measured
+        this.scheduleFrom=System.nanoTime();
+        this.service.getIntervalHistogram();
+        this.response.getIntervalHistogram();
+        long ops0=this.gets.sum()+this.puts.sum();
+
+        Histogram serviceTotal=new Histogram(3);
+        Histogram responseTotal=new Histogram(3);
+        int victim=this.servers-1;
+        long start=System.nanoTime();
+        System.out.printf("%5s %9s %9s %9s %9s %9s %8s  %s%n", "sec", "ops/s", "p50 us", "p99 us", "p999 us", "max us", "log", "event");
+        for(int t=1;t<=this.seconds;t++){
+            String event=scenario(t-1, victim);
+            long due=start+TimeUnit.SECONDS.toNanos(t);
+            long wait;
+            while((wait=due-System.nanoTime())>0){
+                LockSupport.parkNanos(wait);
+            }
+            serviceTotal.add(this.service.getIntervalHistogram());
+            Histogram interval=this.response.getIntervalHistogram();
+            responseTotal.add(interval);
+            System.out.printf("%5d %9d %9.0f %9.0f %9.0f %9.0f %8d  %s%n", t, interval.getTotalCount(),
+                    micros(interval.getValueAtPercentile(50)), micros(interval.getValueAtPercentile(99)),
+                    micros(interval.getValueAtPercentile(99.9)), micros(interval.getMaxValue()), logSize(), event);
+        }
+        double elapsed=(System.nanoTime()-start)/1e9;
+        this.stop=true;
+        long ops=this.gets.sum()+this.puts.sum()-ops0;
+
+        System.out.printf("%n%d servers, %d clients, %s, get ratio %.2f, %d keys, theta %.2f, scenario %s%n",
+                this.servers, this.clients, this.rate>0?String.format("open loop at %.0f ops/s", this.rate):"closed loop",
+                this.getRatio, this.keys, this.theta, this.scenario);
+        System.out.printf("throughput %.0f ops/s (%d gets, %d puts, %d failed puts in all)%n",
+                ops/elapsed, this.gets.sum(), this.puts.sum(), this.failedPuts.sum());
+        if(this.rate>0&&ops/elapsed<0.95*this.rate){
+            System.out.printf("the clients fell behind the schedule: add --clients to reach %.0f ops/s%n", this.rate);
+        }
+        summary("latency", responseTotal);
+        summary("service", serviceTotal);
+        if(this.hgrm!=null){
+            try(PrintStream out=new PrintStream(this.hgrm)){
+                responseTotal.outputPercentileDistribution(out, 1000.0);
+            }
+        }
+        for(Server server:this.kva){
+            if(server!=null){
+                server.Kill();
+            }
+        }
+    }
+
+    /**
+     * One client: do ops until stop, on its own Client and key sequence.
+     */
+    void work(int id){
+        Client ck=new Client(this.peers, this.ports);
+        ZipfianKeys zipf=new ZipfianKeys(this.keys, this.theta, this.seed+id);
+        Random random=new Random(this.seed*31+id);
+        long period=this.rate>0?(long) (1e9*this.clients/this.rate):0;
+        long phase=period>0?Math.floorMod(random.nextLong(), period):0;
+        long due=System.nanoTime()+phase;
+        long expected=this.interval*1000;
+        while(!this.stop){
+            if(period>0){
+                long from=this.scheduleFrom;
+                if(from!=0&&due-from<0){
+                    due=from+phase;
+                }
+                long wait;
+                while((wait=due-System.nanoTime())>0){
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            String key="key"+zipf.next();
+            long start=System.nanoTime();
+            if(random.nextDouble()<this.getRatio){
+                ck.Get(key);
+                this.gets.increment();
+            } else {
+                if(!ck.Put(key, random.nextInt())){
+                    this.failedPuts.increment();
+                }
+                this.puts.increment();
+            }
+            long end=System.nanoTime();
+            this.service.recordValue(end-start);
+            if(period>0){
+                this.response.recordValue(end-Math.min(due, start));
+                due+=period;
+            } else if(expected>0){
+                this.response.recordValueWithExpectedInterval(end-start, expected);
+            } else {
+                this.response.recordValue(end-start);
+            }
+        }
+    }
+
+    /**
+     * Apply what the scenario does at the start of second t of the
+     * measurement, and say what it did.
+     */
+    String scenario(int t, int victim){
+        int third=Math.max(1, this.seconds/3);
+        switch(this.scenario){
+            case "deaf":
+                if(t==third){
+                    this.ports[victim]=DEAF_PORT;
+                    return "server "+victim+" deaf";
+                }
+                if(t==2*third){
+                    this.ports[victim]=this.basePort+victim;
+                    return "server "+victim+" hears again";
+                }
+                break;
+            case "kill":
+                if(t==third){
+                    this.kva[victim].Kill();
+                    this.kva[victim]=null;
+                    return "server "+victim+" killed";
+                }
+                break;
+            case "forget":
+                if(t==0){
+                    this.ports[victim]=DEAF_PORT;
+                    for(int i=0;i<victim;i++){
+                        this.victimPorts[i]=DEAF_PORT;
+                    }
+                    return "server "+victim+" cut off, nothing can be forgotten";
+                }
+                if(t==2*third){
+                    for(int i=0;i<victim;i++){
+                        this.victimPorts[i]=this.basePort+i;
+                    }
+                    this.ports[victim]=this.basePort+victim;
+                    return "server "+victim+" rejoins";
+                }
+                break;
+        }
+        return "";
+    }
+
+    /**
+     * The most instances any live server holds.
+     */
+    int logSize(){
+        int size=0;
+        for(Server server:this.kva){
+            if(server!=null){
+                size=Math.max(size, server.px.Max()-server.px.Min()+1);
+            }
+        }
+        return size;
+    }
+
+    static double micros(long nanos){
+        return nanos/1000.0;
+    }
+
+    static void summary(String name, Histogram h){
+        System.out.printf("%-8s us: p50 %.0f  p90 %.0f  p99 %.0f  p99.9 %.0f  p99.99 %.0f  max %.0f%n", name,
+                micros(h.getValueAtPercentile(50)), micros(h.getValueAtPercentile(90)),
+                micros(h.getValueAtPercentile(99)), micros(h.getValueAtPercentile(99.9)),
+                micros(h.getValueAtPercentile(99.99)), micros(h.getMaxValue()));
+    }
+}
@@ -0,0 +1,49 @@
+package kvpaxos;
+import java.util.Random;
+
+/**
+ * Key ranks 0..n-1 drawn from a Zipfian distribution with exponent theta,
+ * rank 0 the most popular, after Gray et al., "Quickly Generating
+ * Billion-Record Synthetic Databases". theta = 0 is uniform; YCSB uses
+ * 0.99. Not thread safe: every client thread has its own.
+ */
+public class ZipfianKeys {
+    final int n;
+    final double theta;
+    final double alpha;
+    final double zetan;
+    final double eta;
+    final Random random;
+
+    public ZipfianKeys(int n, double theta, long seed){
+        this.n=n;
+        this.theta=theta;
+        this.random=new Random(seed);
+        this.zetan=zeta(n, theta);
+        this.alpha=1.0/(1.0-theta);
+        this.eta=(1-Math.pow(2.0/n, 1-theta))/(1-zeta(2, theta)/this.zetan);
+    }
+
+    static double zeta(int n, double theta){
+        double sum=0;
+        for(int i=1;i<=n;i++){
+            sum+=1/Math.pow(i, theta);
+        }
+        return sum;
+    }
+
+    public int next(){
+        if(this.theta==0){
+            return this.random.nextInt(this.n);
+        }
+        double u=this.random.nextDouble();
+        double uz=u*this.zetan;
+        if(uz<1){
+            return 0;
+        }
+        if(uz<1+Math.pow(0.5, this.theta)){
+            return 1;
+        }
+        return Math.min(this.n-1, (int) (this.n*Math.pow(this.eta*u-this.eta+1, this.alpha)));
+    }
+}
@@ -0,0 +1,77 @@
+package paxos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The acceptor handlers called in process, without a transport: Prepare
+ * and Accept on one instance with a rising proposal number, and Decide on
+ * a new instance every time. With log = wal every promise and accept is
+ * written ahead to an AcceptorLog and synced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AcceptorBenchmark {
+    @Param({"memory", "wal"})
+    String log;
+
+    Paxos px;
+    int proposal;
+    int seq;
+
+    @Setup
+    public void setUp() throws IOException {
+        AcceptorLog wal = null;
+        if (log.equals("wal")) {
+            File dir = Files.createTempDirectory("acceptor-bench").toFile();
+            dir.deleteOnExit();
+            wal = new AcceptorLog(dir, false);
+        }
+        px = Benchmarks.peer(wal);
+        proposal = 0;
+        seq = 1;
+    }
+
+    @TearDown
+    public void tearDown() {
+        px.Kill();
+    }
+
+    @Benchmark
+    public Response prepare() {
+        return px.Prepare(new Request(0, ++proposal, null, 0, -1));
+    }
+
+    @Benchmark
+    public Response accept() {
+        return px.Accept(new Request(0, ++proposal, "value", 0, -1));
+    }
+
+    /**
+     * Decide a new instance; the piggybacked Done value lets the compactor
+     * forget the previous ones, so the log does not grow.
+     */
+    @Benchmark
+    public Response decide() {
+        int s = seq++;
+        return px.Decide(new Request(s, 1, "value", 0, s - 1));
+    }
+}
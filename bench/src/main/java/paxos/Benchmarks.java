@@ -0,0 +1,30 @@
+package paxos;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+
+/**
+ * Helpers shared by the benchmarks.
+ */
+public final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    /**
+     * A port nobody listens on right now, for the RMI registry of a peer.
+     */
+    public static int freePort() {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A Paxos group of one, so a handler call does all of its work locally.
+     */
+    public static Paxos peer(AcceptorLog wal) {
+        return new Paxos(0, new String[]{"127.0.0.1"}, new int[]{freePort()}, wal);
+    }
+}
@@ -0,0 +1,67 @@
+package paxos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode round trips of Paxos messages with the binary codec
+ * and with Java serialization: an Accept request carrying a value, and a
+ * Fetch reply carrying FETCH_BATCH values. The buffer is reused, as the
+ * NIO transport does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({"binary", "java"})
+    String codec;
+
+    MessageCodec messages;
+    ByteBuf buf;
+    Request accept;
+    Response fetch;
+
+    @Setup
+    public void setUp() {
+        messages = codec.equals("binary") ? new BinaryCodec() : MessageCodec.JAVA;
+        buf = new ByteBuf(1 << 16);
+        accept = new Request(123456, 4242, "a value of some sixty-four bytes, like a small client op", 2, 123400);
+        accept.minDone = 123399;
+        fetch = new Response(true);
+        fetch.maxSeq = 200000;
+        fetch.values = new Object[Paxos.FETCH_BATCH];
+        for (int i = 0; i < fetch.values.length; i++) {
+            fetch.values[i] = "value " + i;
+        }
+    }
+
+    Object roundTrip(Object msg) throws IOException {
+        buf.clear();
+        messages.encode(msg, buf);
+        return messages.decode(buf);
+    }
+
+    @Benchmark
+    public Object acceptRequest() throws IOException {
+        return roundTrip(accept);
+    }
+
+    @Benchmark
+    public Object fetchResponse() throws IOException {
+        return roundTrip(fetch);
+    }
+}
@@ -0,0 +1,67 @@
+package paxos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Status(), Min(), Max() and instance lookup on a peer that remembers
+ * 10^3 to 10^6 decided instances, to show that their cost does not grow
+ * with the number of instances.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class InstanceLogBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    int instances;
+
+    Paxos px;
+
+    @Setup
+    public void setUp() {
+        px = Benchmarks.peer(null);
+        for (int seq = 0; seq < instances; seq++) {
+            px.learn(seq, "value");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        px.Kill();
+    }
+
+    @Benchmark
+    public Paxos.retStatus status() {
+        return px.Status(ThreadLocalRandom.current().nextInt(instances));
+    }
+
+    @Benchmark
+    public int min() {
+        return px.Min();
+    }
+
+    @Benchmark
+    public int max() {
+        return px.Max();
+    }
+
+    @Benchmark
+    public Paxos.Instance getOrCreate() {
+        return px.instanceLog.getOrCreate(ThreadLocalRandom.current().nextInt(instances));
+    }
+}
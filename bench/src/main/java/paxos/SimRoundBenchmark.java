@@ -0,0 +1,79 @@
+package paxos;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole consensus instances over a SimNetwork that does not sleep: Start()
+ * on a rotating peer until it has decided, so the score is the
+ * protocol's own cost per instance with the network taken out. Faults can
+ * be turned on to see what retries cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimRoundBenchmark {
+    @Param({"3", "5"})
+    int peers;
+
+    @Param({"0", "0.05"})
+    double dropRate;
+
+    SimNetwork net;
+    Paxos[] pxa;
+    int seq;
+
+    @Setup
+    public void setUp() {
+        net = new SimNetwork(peers, 1);
+        net.setTimeScale(0);
+        net.setDropRate(dropRate);
+        pxa = new Paxos[peers];
+        for (int i = 0; i < peers; i++) {
+            pxa[i] = new Paxos(i, peers, net.endpoint(i));
+        }
+        seq = 0;
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Paxos px : pxa) {
+            px.Kill();
+        }
+    }
+
+    /**
+     * One instance, until the proposer knows it is decided; with drops the
+     * others may only hear of it later.
+     */
+    @Benchmark
+    public Object instance() {
+        int s = seq++;
+        Paxos proposer = pxa[s % peers];
+        proposer.Start(s, s);
+        Paxos.retStatus status;
+        while ((status = proposer.Status(s)).state != paxos.State.Decided) {
+            Thread.onSpinWait();
+        }
+        if (s % 100 == 99) {
+            for (Paxos px : pxa) {
+                px.Done(s - 50);
+            }
+        }
+        return status.v;
+    }
+}
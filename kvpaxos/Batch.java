@@ -0,0 +1,16 @@
+package kvpaxos;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A group of client Ops that is proposed, decided and applied together
+ * as the value of a single Paxos instance.
+ */
+public class Batch implements Serializable {
+    static final long serialVersionUID=44L;
+    ArrayList<Op> ops;
+
+    public Batch(ArrayList<Op> ops){
+        this.ops=ops;
+    }
+}
@@ -0,0 +1,269 @@
+package kvpaxos;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * What the state machine has applied for each client, keyed by ClientId:
+ * the highest opSeq applied, which of the WINDOW opSeqs below it were
+ * applied too, and the reply to the highest one. A retried op is answered
+ * from here, and an op that got decided twice is applied only once.
+ * <p>
+ * Sessions live in an open-addressing table of primitive arrays, so a
+ * session costs a few dozen bytes and no objects. The table is part of
+ * the replicated state: it changes only as instances are applied, and a
+ * session is expired once it has been idle for ttl instances, so every
+ * server expires the same sessions at the same point of the log.
+ */
+public class ClientSessionTable implements Serializable {
+    static final long serialVersionUID=68L;
+    static final int WORDS = 4;
+    public static final int WINDOW = WORDS*64; // opSeqs below the highest that are still told apart
+    static final long EMPTY = -1; // ClientIds are >= 0
+    static final int EXPIRE_INTERVAL = 1024; // instances between two expiry sweeps
+    static final int SESSION_TTL = 100000; // instances a session may be idle
+
+    // what status() says about an op
+    static final int NEW = 0;
+    static final int APPLIED = 1;
+    static final int STALE = 2; // too far below the highest opSeq to tell; never applied again
+
+    long[] keys;
+    int[] highest;
+    long[] window; // WORDS per slot; bit i of the slot: highest - 1 - i was applied
+    boolean[] replySuccess;
+    int[] replyValue;
+    boolean[] replyAbsent;
+    int[] lastActive; // instance a session last applied an op in
+    int size;
+    int ttl;
+
+    public ClientSessionTable(){
+        this(16);
+    }
+
+    ClientSessionTable(int capacity){
+        int n=Integer.highestOneBit(Math.max(capacity, 2)-1)<<1;
+        this.keys=new long[n];
+        Arrays.fill(this.keys, EMPTY);
+        this.highest=new int[n];
+        this.window=new long[n*WORDS];
+        this.replySuccess=new boolean[n];
+        this.replyValue=new int[n];
+        this.replyAbsent=new boolean[n];
+        this.lastActive=new int[n];
+        this.size=0;
+        this.ttl=SESSION_TTL;
+    }
+
+    int slot(long client){
+        int mask=this.keys.length-1;
+        int i=(int) ((client*0x9E3779B97F4A7C15L)>>>32)&mask;
+        while(this.keys[i]!=EMPTY&&this.keys[i]!=client){
+            i=(i+1)&mask;
+        }
+        return i;
+    }
+
+    /**
+     * NEW if opSeq of client has not been applied, APPLIED if it has, or
+     * STALE if it lies more than WINDOW below the client's highest.
+     */
+    int status(long client, int opSeq){
+        int i=slot(client);
+        if(this.keys[i]==EMPTY||opSeq>this.highest[i]){
+            return NEW;
+        }
+        if(opSeq==this.highest[i]){
+            return APPLIED;
+        }
+        int bit=this.highest[i]-1-opSeq;
+        if(bit>=WINDOW){
+            return STALE;
+        }
+        return (this.window[i*WORDS+bit/64]&1L<<bit%64)!=0?APPLIED:NEW;
+    }
+
+    /**
+     * The reply to opSeq if it is the highest op applied for client, else
+     * null.
+     */
+    Response reply(long client, int opSeq){
+        int i=slot(client);
+        if(this.keys[i]==EMPTY||this.highest[i]!=opSeq){
+            return null;
+        }
+        Response res=new Response(this.replySuccess[i], this.replyValue[i]);
+        res.absent=this.replyAbsent[i];
+        return res;
+    }
+
+    /**
+     * Record that opSeq of client was applied in instance seq with reply.
+     */
+    void record(long client, int opSeq, Response reply, int seq){
+        if((this.size+1)*2>this.keys.length){
+            rehash(this.keys.length*2, Integer.MIN_VALUE);
+        }
+        int i=slot(client);
+        if(this.keys[i]==EMPTY){
+            this.keys[i]=client;
+            this.highest[i]=opSeq;
+            this.size++;
+        } else if(opSeq>this.highest[i]){
+            shift(i, opSeq-this.highest[i]);
+            this.highest[i]=opSeq;
+        } else {
+            int bit=this.highest[i]-1-opSeq;
+            if(bit>=0&&bit<WINDOW){
+                this.window[i*WORDS+bit/64]|=1L<<bit%64;
+            }
+            this.lastActive[i]=seq;
+            return;
+        }
+        this.replySuccess[i]=reply.isSuccess;
+        this.replyValue[i]=reply.value;
+        this.replyAbsent[i]=reply.absent;
+        this.lastActive[i]=seq;
+    }
+
+    /**
+     * Move the window of slot i up by n opSeqs: the old highest becomes
+     * bit n - 1.
+     */
+    void shift(int i, int n){
+        long[] w=this.window;
+        int base=i*WORDS;
+        if(n>WINDOW){
+            Arrays.fill(w, base, base+WORDS, 0L);
+            return;
+        }
+        // shift the WORDS-long bit set left by n, a word at a time
+        int words=n/64;
+        int bits=n%64;
+        for(int k=WORDS-1;k>=0;k--){
+            int src=k-words;
+            long v=0;
+            if(src>=0){
+                v=w[base+src]<<bits;
+                if(bits!=0&&src>0){
+                    v|=w[base+src-1]>>>(64-bits);
+                }
+            }
+            w[base+k]=v;
+        }
+        w[base+(n-1)/64]|=1L<<(n-1)%64;
+    }
+
+    /**
+     * Called after instance seq was applied. Every EXPIRE_INTERVAL
+     * instances, drop the sessions that have been idle for ttl instances.
+     */
+    void applied(int seq){
+        if(seq%EXPIRE_INTERVAL==0&&seq>=this.ttl){
+            rehash(this.keys.length, seq-this.ttl);
+        }
+    }
+
+    /**
+     * Rebuild the table with capacity slots, leaving out the sessions last
+     * active before expireBefore.
+     */
+    void rehash(int capacity, int expireBefore){
+        ClientSessionTable t=new ClientSessionTable(capacity);
+        for(int i=0;i<this.keys.length;i++){
+            if(this.keys[i]==EMPTY||this.lastActive[i]<expireBefore){
+                continue;
+            }
+            int j=t.slot(this.keys[i]);
+            t.keys[j]=this.keys[i];
+            t.highest[j]=this.highest[i];
+            System.arraycopy(this.window, i*WORDS, t.window, j*WORDS, WORDS);
+            t.replySuccess[j]=this.replySuccess[i];
+            t.replyValue[j]=this.replyValue[i];
+            t.replyAbsent[j]=this.replyAbsent[i];
+            t.lastActive[j]=this.lastActive[i];
+            t.size++;
+        }
+        this.keys=t.keys;
+        this.highest=t.highest;
+        this.window=t.window;
+        this.replySuccess=t.replySuccess;
+        this.replyValue=t.replyValue;
+        this.replyAbsent=t.replyAbsent;
+        this.lastActive=t.lastActive;
+        this.size=t.size;
+    }
+
+    public int size(){
+        return this.size;
+    }
+
+    /**
+     * Configure how many instances a session may be idle before it expires.
+     * Must be the same on every server.
+     */
+    public void setTtl(int ttl){
+        this.ttl=ttl;
+    }
+
+    /**
+     * A copy for a snapshot that is written while the apply loop goes on.
+     */
+    ClientSessionTable copy(){
+        ClientSessionTable t=new ClientSessionTable(2);
+        t.keys=this.keys.clone();
+        t.highest=this.highest.clone();
+        t.window=this.window.clone();
+        t.replySuccess=this.replySuccess.clone();
+        t.replyValue=this.replyValue.clone();
+        t.replyAbsent=this.replyAbsent.clone();
+        t.lastActive=this.lastActive.clone();
+        t.size=this.size;
+        t.ttl=this.ttl;
+        return t;
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(this.ttl);
+        out.writeInt(this.size);
+        for(int i=0;i<this.keys.length;i++){
+            if(this.keys[i]==EMPTY){
+                continue;
+            }
+            out.writeLong(this.keys[i]);
+            out.writeInt(this.highest[i]);
+            for(int w=0;w<WORDS;w++){
+                out.writeLong(this.window[i*WORDS+w]);
+            }
+            out.writeBoolean(this.replySuccess[i]);
+            out.writeInt(this.replyValue[i]);
+            out.writeBoolean(this.replyAbsent[i]);
+            out.writeInt(this.lastActive[i]);
+        }
+    }
+
+    static ClientSessionTable read(DataInputStream in) throws IOException {
+        int ttl=in.readInt();
+        int n=in.readInt();
+        ClientSessionTable t=new ClientSessionTable(n*2+2);
+        t.ttl=ttl;
+        for(int k=0;k<n;k++){
+            long client=in.readLong();
+            int i=t.slot(client);
+            t.keys[i]=client;
+            t.highest[i]=in.readInt();
+            for(int w=0;w<WORDS;w++){
+                t.window[i*WORDS+w]=in.readLong();
+            }
+            t.replySuccess[i]=in.readBoolean();
+            t.replyValue[i]=in.readInt();
+            t.replyAbsent[i]=in.readBoolean();
+            t.lastActive[i]=in.readInt();
+            t.size++;
+        }
+        return t;
+    }
+}
@@ -0,0 +1,227 @@
+package kvpaxos;
+import paxos.ByteBuf;
+import paxos.MessageCodec;
+import paxos.TraceContext;
+import paxos.ValueCodec;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Hand-written encoding of the client protocol (Request and Response) and
+ * of the values the servers agree on (Op and Batch). Messages start with
+ * a version byte and a type tag. Op names are interned to a one-byte code
+ * and keys are length-prefixed UTF-8.
+ * <p>
+ * Use it as the MessageCodec of a client transport, and as the ValueCodec
+ * of the servers' Paxos peers: new BinaryCodec(KVCodec.INSTANCE) on the
+ * peer transport plus Paxos.setValueCodec(KVCodec.INSTANCE).
+ */
+public class KVCodec implements MessageCodec, ValueCodec {
+    public static final KVCodec INSTANCE = new KVCodec();
+    public static final int VERSION = 7;
+    static final int NULL = 0;
+    static final int REQUEST = 1;
+    static final int RESPONSE = 2;
+    static final int OP = 3;
+    static final int BATCH = 4;
+    static final int SERIALIZED = 127;
+
+    // interned op names; the code of a name is its index, OTHER spells it out
+    static final String[] OPS = {"Get", "Put"};
+    static final int OTHER = 127;
+
+    // ---------- MessageCodec ----------
+
+    @Override
+    public void encode(Object msg, ByteBuf out) throws IOException {
+        write(msg, out);
+    }
+
+    @Override
+    public Object decode(ByteBuf in) throws IOException {
+        return read(in);
+    }
+
+    // ---------- ValueCodec ----------
+
+    @Override
+    public void write(Object value, ByteBuf out) throws IOException {
+        out.writeByte(VERSION);
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Request) {
+            Request req = (Request) value;
+            out.writeByte(REQUEST);
+            out.writeBoolean(req.batch != null);
+            if (req.batch != null) {
+                writeOps(req.batch.ops, out);
+            } else {
+                writeOp(req.operation, out);
+            }
+            TraceContext.write(req.trace, out);
+        } else if (value instanceof Response) {
+            out.writeByte(RESPONSE);
+            writeResponse((Response) value, out);
+        } else if (value instanceof Op) {
+            out.writeByte(OP);
+            writeOp((Op) value, out);
+        } else if (value instanceof Batch) {
+            out.writeByte(BATCH);
+            writeOps(((Batch) value).ops, out);
+        } else {
+            out.writeByte(SERIALIZED);
+            ValueCodec.JAVA.write(value, out);
+        }
+    }
+
+    @Override
+    public Object read(ByteBuf in) throws IOException {
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported codec version " + version);
+        }
+        int type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case REQUEST: {
+                Request req = in.readBoolean() ? new Request(new Batch(readOps(in))) : new Request(readOp(in));
+                req.trace = TraceContext.read(in);
+                return req;
+            }
+            case RESPONSE:
+                return readResponse(in);
+            case OP:
+                return readOp(in);
+            case BATCH:
+                return new Batch(readOps(in));
+            case SERIALIZED:
+                return ValueCodec.JAVA.read(in);
+            default:
+                throw new IOException("unknown message type " + type);
+        }
+    }
+
+    static void writeResponse(Response resp, ByteBuf out) {
+        out.writeBoolean(resp.isSuccess);
+        out.writeVarInt(resp.value);
+        out.writeBoolean(resp.absent);
+        out.writeVarInt(resp.leader);
+        out.writeVarInt(resp.results == null ? -1 : resp.results.length);
+        if (resp.results != null) {
+            for (Response result : resp.results) {
+                writeResponse(result, out);
+            }
+        }
+        out.writeBoolean(resp.shardMap != null);
+        if (resp.shardMap != null) {
+            writeShardMap(resp.shardMap, out);
+        }
+    }
+
+    static Response readResponse(ByteBuf in) throws IOException {
+        boolean isSuccess = in.readBoolean();
+        Response resp = new Response(isSuccess, in.readVarInt());
+        resp.absent = in.readBoolean();
+        resp.leader = in.readVarInt();
+        int n = in.readVarInt();
+        if (n >= 0) {
+            resp.results = new Response[n];
+            for (int i = 0; i < n; i++) {
+                resp.results[i] = readResponse(in);
+            }
+        }
+        if (in.readBoolean()) {
+            resp.shardMap = readShardMap(in);
+        }
+        return resp;
+    }
+
+    static void writeShardMap(ShardMap map, ByteBuf out) {
+        out.writeVarInt(map.version);
+        out.writeVarInt(map.shardGroup.length);
+        for (int group : map.shardGroup) {
+            out.writeVarInt(group);
+        }
+        out.writeVarInt(map.servers.length);
+        for (int g = 0; g < map.servers.length; g++) {
+            out.writeVarInt(map.servers[g].length);
+            for (int i = 0; i < map.servers[g].length; i++) {
+                out.writeString(map.servers[g][i]);
+                out.writeVarInt(map.ports[g][i]);
+            }
+        }
+    }
+
+    static ShardMap readShardMap(ByteBuf in) throws IOException {
+        int version = in.readVarInt();
+        int[] shardGroup = new int[in.readVarInt()];
+        for (int s = 0; s < shardGroup.length; s++) {
+            shardGroup[s] = in.readVarInt();
+        }
+        int groups = in.readVarInt();
+        String[][] servers = new String[groups][];
+        int[][] ports = new int[groups][];
+        for (int g = 0; g < groups; g++) {
+            int n = in.readVarInt();
+            servers[g] = new String[n];
+            ports[g] = new int[n];
+            for (int i = 0; i < n; i++) {
+                servers[g][i] = in.readString();
+                ports[g][i] = in.readVarInt();
+            }
+        }
+        return new ShardMap(version, shardGroup, servers, ports);
+    }
+
+    static void writeOps(ArrayList<Op> ops, ByteBuf out) {
+        out.writeVarInt(ops.size());
+        for (Op o : ops) {
+            writeOp(o, out);
+        }
+    }
+
+    static ArrayList<Op> readOps(ByteBuf in) throws IOException {
+        int n = in.readVarInt();
+        ArrayList<Op> ops = new ArrayList<Op>(n);
+        for (int i = 0; i < n; i++) {
+            ops.add(readOp(in));
+        }
+        return ops;
+    }
+
+    static void writeOp(Op o, ByteBuf out) {
+        int code = OTHER;
+        for (int i = 0; i < OPS.length; i++) {
+            if (OPS[i].equals(o.op)) {
+                code = i;
+                break;
+            }
+        }
+        out.writeByte(code);
+        if (code == OTHER) {
+            out.writeString(o.op);
+        }
+        out.writeLong(o.ClientId);
+        out.writeVarInt(o.opSeq);
+        out.writeString(o.key);
+        out.writeVarInt(o.value);
+    }
+
+    static Op readOp(ByteBuf in) throws IOException {
+        int code = in.readByte();
+        String op;
+        if (code == OTHER) {
+            op = in.readString();
+        } else if (code >= 0 && code < OPS.length) {
+            op = OPS[code];
+        } else {
+            throw new IOException("unknown op code " + code);
+        }
+        long clientId = in.readLong();
+        int opSeq = in.readVarInt();
+        String key = in.readString();
+        return new Op(op, clientId, opSeq, key, in.readVarInt());
+    }
+}
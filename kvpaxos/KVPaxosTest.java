@@ -1,6 +1,12 @@
 package kvpaxos;
 
 import org.junit.Test;
+import paxos.BinaryCodec;
+import paxos.MessageCodec;
+import paxos.NioTransport;
+import paxos.Paxos;
+import paxos.Span;
+import paxos.Tracer;
 import static org.junit.Assert.*;
 
 /**
@@ -114,4 +120,771 @@ public class KVPaxosTest {
         System.out.println("... Passed");
 
     }
+
+    @Test
+    public void TestConcurrentClients(){
+        final int npaxos = 3;
+        final int nclients = 10;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+            kva[i].setBatching(16, 5);
+        }
+
+        System.out.println("Test: concurrent clients ...");
+        Thread[] threads = new Thread[nclients];
+        for(int c = 0; c < nclients; c++){
+            final int id = c;
+            threads[c] = new Thread(() -> {
+                Client ck = new Client(peers, ports);
+                for(int i = 0; i < 10; i++){
+                    ck.Put("c"+id+"-"+i, id*100+i);
+                }
+            });
+            threads[c].start();
+        }
+        for(Thread t : threads){
+            try {
+                t.join();
+            } catch (InterruptedException e){
+                e.printStackTrace();
+            }
+        }
+        assertTrue("ops were not batched", kva[0].nextSeqIdx < nclients*10);
+        Client ck = new Client(peers, ports);
+        for(int c = 0; c < nclients; c++){
+            for(int i = 0; i < 10; i++){
+                check(ck, "c"+c+"-"+i, c*100+i);
+            }
+        }
+
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestKillStopsLoops(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+
+        int before = loopThreads();
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+        }
+
+        System.out.println("Test: Kill stops the proposer and apply loops ...");
+        Client ck = new Client(peers, ports);
+        ck.Put("a", 1);
+        check(ck, "a", 1);
+        assertEquals(before + 2*npaxos, loopThreads());
+        for(int i = 0; i < npaxos; i++){
+            kva[i].Kill();
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        while(loopThreads() > before && System.currentTimeMillis() < deadline){
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e){
+                e.printStackTrace();
+            }
+        }
+        assertEquals("loop threads outlived Kill", before, loopThreads());
+
+        System.out.println("... Passed");
+    }
+
+    static int loopThreads(){
+        int n = 0;
+        for(Thread t : Thread.getAllStackTraces().keySet()){
+            if(t.isAlive() && (t.getName().startsWith("kvpaxos-propose-") || t.getName().startsWith("kvpaxos-apply-"))){
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void TestMissingKey(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+        }
+
+        System.out.println("Test: Get of a missing key is a successful read ...");
+        Client ck = new Client(peers, ports);
+        ck.Put("a", 1);
+        Response res = kva[0].Get(new Request(new Op("Get", 9, 0, "missing", -1)));
+        assertTrue(res.isSuccess);
+        assertTrue(res.absent);
+        assertNull(res.getValue());
+
+        java.util.ArrayList<Op> ops = new java.util.ArrayList<Op>();
+        ops.add(new Op("Get", 9, 1, "missing", -1));
+        ops.add(new Op("Get", 9, 2, "a", -1));
+        res = kva[1].Multi(new Request(new Batch(ops)));
+        assertTrue(res.results[0].isSuccess && res.results[0].absent);
+        assertEquals(Integer.valueOf(1), res.results[1].getValue());
+
+        try {
+            byte[] data = KVCodec.INSTANCE.encode(res);
+            Response decoded = (Response) KVCodec.INSTANCE.decode(data, 0, data.length);
+            assertTrue(decoded.results[0].absent);
+            assertFalse(decoded.results[1].absent);
+        } catch(Exception e){
+            fail(e.toString());
+        }
+
+        ClientSessionTable sessions = new ClientSessionTable();
+        sessions.record(9, 0, Response.absent(), 1);
+        assertTrue(sessions.reply(9, 0).absent);
+
+        // one call answers it; a failure would have been retried on every server
+        Tracer.setSampleRate(1);
+        Tracer.clear();
+        try {
+            assertNull(ck.Get("missing"));
+            Tracer.setSampleRate(0);
+            int calls = 0;
+            for(Span span : Tracer.spans()){
+                if(span.service().equals("kvpaxos-client") && span.name().equals("call")){
+                    calls++;
+                }
+            }
+            assertEquals(1, calls);
+        } finally {
+            Tracer.setSampleRate(0);
+            Tracer.clear();
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i].Kill();
+        }
+        System.out.println("... Passed");
+    }
+
+    @Test
+    public void TestBinaryCodec(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+            kva[i].px.setValueCodec(KVCodec.INSTANCE);
+            kva[i].px.setTransport(new NioTransport(i, peers, ports, 11000, Paxos.PAXOS_METHODS, new BinaryCodec(KVCodec.INSTANCE)));
+            kva[i].serve(new NioTransport(i, peers, ports, 12000, Server.KV_METHODS, KVCodec.INSTANCE));
+        }
+
+        System.out.println("Test: binary codec ...");
+        try {
+            Request req = new Request(new Op("Put", 7, 3, "app", 6));
+            int binary = KVCodec.INSTANCE.encode(req).length;
+            int java = MessageCodec.JAVA.encode(req).length;
+            assertTrue("binary request is " + binary + " bytes, java " + java, binary * 10 <= java);
+        } catch (java.io.IOException e){
+            fail(e.toString());
+        }
+        Client ck = new Client(peers, ports);
+        ck.setTransport(new NioTransport(-1, peers, ports, 12000, Server.KV_METHODS, KVCodec.INSTANCE));
+        ck.Put("app", 6);
+        check(ck, "app", 6);
+        ck.Put("a", 70);
+        check(ck, "a", 70);
+
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestSnapshotRestart(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+        java.io.File[] dirs = new java.io.File[npaxos];
+
+        Server[] kva = new Server[npaxos];
+        try {
+            for(int i = 0 ; i < npaxos; i++){
+                ports[i] = 1100+i;
+                peers[i] = host;
+                dirs[i] = java.nio.file.Files.createTempDirectory("kvpaxos-" + i).toFile();
+            }
+        } catch (java.io.IOException e){
+            fail(e.toString());
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i, dirs[i]);
+            kva[i].setSnapshotInterval(10);
+        }
+
+        Client ck = new Client(peers, ports);
+        System.out.println("Test: snapshot and restart ...");
+        for(int i = 0; i < 50; i++){
+            ck.Put("s"+i, i);
+        }
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e){
+            e.printStackTrace();
+        }
+        // the client only talks to server 0, so only it applies the log
+        assertTrue("no snapshot was taken", kva[0].snapshotSeq >= 40);
+        assertTrue("instances the snapshot does not cover were forgotten", kva[0].px.Min() <= kva[0].snapshotSeq+1);
+        kva[0].Kill();
+        kva[0] = new Server(peers, ports, 0, dirs[0]);
+        assertEquals(50, kva[0].nextSeqIdx);
+        for(int i = 0; i < 50; i++){
+            assertEquals(Integer.valueOf(i), kva[0].stateMachine.get("s"+i));
+        }
+        ck.Put("after", 1);
+        check(ck, "after", 1);
+        check(ck, "s7", 7);
+
+        System.out.println("... Passed");
+
+        System.out.println("Test: installing a snapshot while one is written ...");
+        final java.util.concurrent.CountDownLatch gate = new java.util.concurrent.CountDownLatch(1);
+        int seq;
+        kva[0].mutex.lock();
+        try {
+            // a slow write: the writer waits for the gate before it reads the state
+            kva[0].stateMachine = new java.util.concurrent.ConcurrentHashMap<String, Integer>(kva[0].stateMachine){
+                @Override
+                public java.util.Set<java.util.Map.Entry<String, Integer>> entrySet(){
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.entrySet();
+                }
+            };
+            seq = kva[0].nextSeqIdx-1;
+            kva[0].startSnapshot(seq);
+        } finally {
+            kva[0].mutex.unlock();
+        }
+        java.util.HashMap<String, Integer> other = new java.util.HashMap<String, Integer>();
+        other.put("installed", 1);
+        assertTrue(kva[0].install(new Snapshot(seq+10, other, new ClientSessionTable())));
+        assertNull(kva[0].stateMachine.get("s7"));
+        gate.countDown();
+        for(int i = 0; i < 100 && kva[0].undo != null; i++){
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e){
+                e.printStackTrace();
+            }
+        }
+        try {
+            Snapshot written = Snapshot.load(dirs[0]);
+            assertEquals(seq, written.seq);
+            for(int i = 0; i < 50; i++){
+                assertEquals(Integer.valueOf(i), written.state.get("s"+i));
+            }
+            assertEquals(Integer.valueOf(1), written.state.get("after"));
+            assertFalse(written.state.containsKey("installed"));
+        } catch (java.io.IOException e){
+            fail(e.toString());
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i].Kill();
+        }
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestCatchUp(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+        }
+
+        Client ck = new Client(peers, ports);
+        // a client of server 2 alone
+        Client ck2 = new Client(new String[]{host}, new int[]{1102});
+        System.out.println("Test: deaf server catches up in bulk ...");
+        ports[2] = 1;
+        for(int i = 0; i < 200; i++){
+            ck.Put("k"+i, i);
+        }
+        ports[2] = 1102;
+        check(ck2, "k199", 199);
+        assertTrue("server 2 did not catch up", kva[2].nextSeqIdx >= 200);
+        for(int i = 0; i < 5; i++){
+            ck2.Put("x"+i, i);
+        }
+        System.out.println("... Passed");
+
+        System.out.println("Test: restarted server gets a snapshot ...");
+        kva[2].Kill();
+        for(int i = 200; i < 300; i++){
+            ck.Put("k"+i, i);
+        }
+        assertTrue("nothing was forgotten", kva[0].px.Min() > 100);
+        kva[2] = new Server(peers, ports, 2);
+        check(ck2, "k299", 299);
+        check(ck2, "k7", 7);
+        check(ck2, "x4", 4);
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestReadLease(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+            kva[i].setLeader(0);
+        }
+
+        Client ck = new Client(peers, ports);
+        Client ck0 = new Client(new String[]{host}, new int[]{1100});
+        Client ck1 = new Client(new String[]{host}, new int[]{1101});
+        System.out.println("Test: reads do not use Paxos instances ...");
+        for(int i = 0; i < 10; i++){
+            ck.Put("a"+i, i);
+        }
+        for(int i = 0; i < 20 && !kva[0].px.HasLease(); i++){
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e){
+                e.printStackTrace();
+            }
+        }
+        assertTrue("leader has no lease", kva[0].px.HasLease());
+        assertFalse(kva[1].px.HasLease());
+        int max = kva[0].px.Max();
+        for(int i = 0; i < 50; i++){
+            check(ck0, "a"+(i%10), i%10);
+            check(ck1, "a"+(i%10), i%10);
+        }
+        assertEquals("a Get used an instance", max, kva[0].px.Max());
+        System.out.println("... Passed");
+
+        System.out.println("Test: reads see writes through other servers ...");
+        for(int i = 0; i < 10; i++){
+            ck1.Put("b", i);
+            check(ck0, "b", i);
+            ck0.Put("c", i);
+            check(ck1, "c", i);
+        }
+        System.out.println("... Passed");
+
+        System.out.println("Test: lease reads do not wait for instances that only saw a Prepare ...");
+        for(int i = 0; i < npaxos; i++){
+            kva[i].px.Prepare(new paxos.Request(kva[0].px.Max()+100, 1, null, 1, -1));
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < 10; i++){
+            check(ck0, "c", 9);
+        }
+        long ms = (System.nanoTime()-start)/1000000;
+        assertTrue("lease reads waited " + ms + "ms", ms < Server.READ_WAIT_MS);
+        System.out.println("... Passed");
+
+        System.out.println("Test: writes go on after the lease holder dies ...");
+        kva[0].Kill();
+        ck1.Put("d", 4);
+        check(ck1, "d", 4);
+        check(ck1, "c", 9);
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestServerSelection(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+        }
+
+        // the client cannot reach server 0, the servers can
+        int[] clientPorts = ports.clone();
+        clientPorts[0] = 1;
+        Client ck = new Client(peers, clientPorts);
+        System.out.println("Test: client avoids an unreachable server ...");
+        for(int i = 0; i < 20; i++){
+            ck.Put("a", i);
+            check(ck, "a", i);
+        }
+        assertEquals("server 0 was tried again", 1, ck.failures[0]);
+        assertTrue(ck.preferred == 1 || ck.preferred == 2);
+        System.out.println("... Passed");
+
+        System.out.println("Test: client follows the leader hint ...");
+        for(int i = 0; i < npaxos; i++){
+            kva[i].setLeader(2);
+        }
+        ck.Put("b", 1);
+        assertEquals(2, ck.preferred);
+        check(ck, "b", 1);
+        assertEquals(2, ck.preferred);
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestAsyncClient(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+        }
+
+        Client ck = new Client(peers, ports);
+        ck.setPipelining(2, 32);
+        System.out.println("Test: many async ops in flight ...");
+        java.util.ArrayList<java.util.concurrent.CompletableFuture<Boolean>> puts = new java.util.ArrayList<>();
+        for(int i = 0; i < 500; i++){
+            puts.add(ck.PutAsync("k"+i, i));
+        }
+        for(java.util.concurrent.CompletableFuture<Boolean> put : puts){
+            assertTrue(put.join());
+        }
+        java.util.ArrayList<java.util.concurrent.CompletableFuture<Integer>> gets = new java.util.ArrayList<>();
+        for(int i = 0; i < 500; i++){
+            gets.add(ck.GetAsync("k"+i));
+        }
+        for(int i = 0; i < 500; i++){
+            assertEquals(Integer.valueOf(i), gets.get(i).join());
+        }
+        assertTrue("ops were not coalesced", kva[0].px.Max() < 100);
+        assertNull(ck.GetAsync("missing").join());
+        check(ck, "k499", 499);
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestDuplicates(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+        }
+
+        Client ck = new Client(peers, ports);
+        System.out.println("Test: a retry at another server is not applied again ...");
+        Op first = new Op("Put", 1000, 0, "x", 1);
+        assertTrue(kva[0].Put(new Request(first)).isSuccess);
+        assertTrue(kva[1].Put(new Request(new Op("Put", 1000, 1, "x", 2))).isSuccess);
+        check(ck, "x", 2);
+        int max = kva[0].px.Max();
+        for(int i = 0; i < 100 && kva[2].nextSeqIdx <= max; i++){
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e){
+                e.printStackTrace();
+            }
+        }
+        assertTrue(kva[2].Put(new Request(first)).isSuccess);
+        assertEquals("the retry used an instance", max, kva[2].px.Max());
+        check(ck, "x", 2);
+        System.out.println("... Passed");
+
+        System.out.println("Test: clients of different processes are told apart ...");
+        // as if each ran in a process of its own: both are client 0 there
+        Client.NEXT_ID.set(0);
+        Client ck1 = new Client(peers, ports);
+        Client.NEXT_ID.set(0);
+        Client ck2 = new Client(peers, ports);
+        assertEquals(ck1.clientSeq, ck2.clientSeq);
+        assertTrue(ck1.Put("y", 1));
+        assertTrue(ck2.Put("y", 2));
+        check(ck1, "y", 2);
+        for(int i = 0; i < ClientSessionTable.WINDOW + 10; i++){
+            ck1.opSeq.getAndIncrement();
+        }
+        assertTrue(ck1.Put("y", 3));
+        assertTrue("a Put was taken for a stale retry", ck2.Put("y", 4));
+        check(ck2, "y", 4);
+        System.out.println("... Passed");
+
+        System.out.println("Test: session table ...");
+        ClientSessionTable sessions = new ClientSessionTable();
+        Response ok = new Response(true, -1);
+        for(int c = 0; c < 100; c++){
+            sessions.record(c, 5, ok, 0);
+            sessions.record(c, 3, ok, 0);
+        }
+        assertEquals(100, sessions.size());
+        assertEquals(ClientSessionTable.APPLIED, sessions.status(7, 5));
+        assertEquals(ClientSessionTable.APPLIED, sessions.status(7, 3));
+        assertEquals(ClientSessionTable.NEW, sessions.status(7, 4));
+        assertEquals(ClientSessionTable.NEW, sessions.status(7, 6));
+        sessions.record(7, 5 + ClientSessionTable.WINDOW, ok, 0);
+        assertEquals(ClientSessionTable.APPLIED, sessions.status(7, 5));
+        assertEquals(ClientSessionTable.STALE, sessions.status(7, 3));
+        sessions.setTtl(2000);
+        sessions.record(8, 6, ok, 1500);
+        sessions.applied(2048);
+        assertEquals(1, sessions.size());
+        assertEquals(ClientSessionTable.APPLIED, sessions.status(8, 5));
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestSharding(){
+        final int npaxos = 3;
+        final int ngroups = 3;
+        String host = "127.0.0.1";
+        String[][] servers = new String[ngroups][npaxos];
+        int[][] ports = new int[ngroups][npaxos];
+        for(int g = 0; g < ngroups; g++){
+            for(int i = 0; i < npaxos; i++){
+                servers[g][i] = host;
+                ports[g][i] = 1100+10*g+i;
+            }
+        }
+        ShardMap map = ShardMap.uniform(2, 16, servers, ports);
+
+        ShardedServer[] nodes = new ShardedServer[npaxos];
+        for(int i = 0; i < npaxos; i++){
+            nodes[i] = new ShardedServer(map, i);
+        }
+
+        System.out.println("Test: keys are spread over the groups ...");
+        ShardedClient ck = new ShardedClient(map);
+        for(int i = 0; i < 60; i++){
+            assertTrue(ck.Put("k"+i, i));
+        }
+        for(int i = 0; i < 60; i++){
+            assertEquals(Integer.valueOf(i), ck.Get("k"+i));
+        }
+        assertNull(ck.Get("missing"));
+        for(int g = 0; g < ngroups; g++){
+            Server server = nodes[0].group(g);
+            assertTrue("group " + g + " got no keys", server.stateMachine.size() > 0);
+            for(String key : server.stateMachine.keySet()){
+                assertEquals(g, map.group(key));
+            }
+        }
+        System.out.println("... Passed");
+
+        System.out.println("Test: a stale map is replaced ...");
+        int[] allInGroup0 = new int[16];
+        ShardedClient stale = new ShardedClient(new ShardMap(1, allInGroup0, servers, ports));
+        for(int i = 0; i < 60; i++){
+            assertEquals(Integer.valueOf(i), stale.Get("k"+i));
+        }
+        assertEquals(2, stale.getShardMap().version);
+        assertTrue(stale.Put("k1", 100));
+        assertEquals(Integer.valueOf(100), ck.Get("k1"));
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestMetrics(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+        }
+        Client ck = new Client(peers, ports);
+
+        System.out.println("Test: metrics are recorded ...");
+        for(int i = 0; i < 20; i++){
+            ck.Put("m"+i, i);
+            check(ck, "m"+i, i);
+        }
+        long puts = 0;
+        long gets = 0;
+        long accepts = 0;
+        for(int i = 0; i < npaxos; i++){
+            java.util.Map<String, Long> kv = kva[i].getMetrics().snapshot();
+            puts += kv.get("put_nanos.count");
+            gets += kv.get("get_nanos.count");
+            accepts += kva[i].px.getMetrics().snapshot().get("accept_nanos.count");
+            assertTrue(kv.containsKey("apply_lag"));
+        }
+        assertEquals(20, puts);
+        assertTrue("gets: " + gets, gets >= 20);
+        assertTrue("no Accept phase recorded", accepts > 0);
+        for(int i = 0; i < npaxos; i++){
+            kva[i].px.Prepare(new paxos.Request(kva[0].px.Max()+100, 1, null, 1, -1));
+        }
+        check(ck, "m0", 0);
+        long lag = kva[0].getMetrics().snapshot().get("apply_lag");
+        assertTrue("lag of an instance that only saw a Prepare: " + lag, lag < 100);
+        System.out.println("... Passed");
+
+        System.out.println("Test: metrics in JMX and over HTTP ...");
+        try {
+            kva[0].exportMetrics();
+            javax.management.MBeanServer mbeans = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+            javax.management.ObjectName name = new javax.management.ObjectName("paxos:type=Paxos,group=0,peer=0");
+            assertTrue((Long) mbeans.getAttribute(name, "instances") >= 0);
+            long applied = (Long) mbeans.getAttribute(new javax.management.ObjectName("kvpaxos:type=Server,group=0,peer=0"), "ops_applied");
+            assertTrue("applied: " + applied, applied >= 0 && applied <= 20);
+
+            com.sun.net.httpserver.HttpServer http = paxos.Metrics.serve(0, kva[0].getMetrics(), kva[0].px.getMetrics());
+            java.net.URL url = new java.net.URL("http://127.0.0.1:" + http.getAddress().getPort() + "/metrics");
+            String text = new String(url.openStream().readAllBytes(), java.nio.charset.StandardCharsets.UTF_8);
+            http.stop(0);
+            assertTrue(text, text.contains("paxos_accept_nanos_count{peer=\"0\"}"));
+            assertTrue(text, text.contains("paxos_rpc_failures{peer=\"0\",to=\"1\"}"));
+            assertTrue(text, text.contains("kvpaxos_put_nanos{peer=\"0\",quantile=\"0.99\"}"));
+
+            for(int i = 0; i < npaxos; i++){
+                kva[i].Kill();
+            }
+            assertFalse(mbeans.isRegistered(name));
+        } catch(Exception e){
+            fail(e.toString());
+        }
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestTracing(){
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+        Server[] kva = new Server[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = host;
+        }
+        for(int i = 0; i < npaxos; i++){
+            kva[i] = new Server(peers, ports, i);
+        }
+        Client ck = new Client(peers, ports);
+
+        System.out.println("Test: a sampled Put is traced end to end ...");
+        Tracer.setSampleRate(1);
+        Tracer.clear();
+        try {
+            assertTrue(ck.Put("t", 1));
+            Tracer.setSampleRate(0);
+            Thread.sleep(500);
+            java.util.List<Span> spans = Tracer.spans();
+            Span root = null;
+            for(Span span : spans){
+                if(span.service().equals("kvpaxos-client") && span.name().equals("Put")){
+                    root = span;
+                }
+            }
+            assertNotNull("no client span", root);
+            java.util.Set<String> names = new java.util.HashSet<String>();
+            for(Span span : spans){
+                if(span.context().traceLow == root.context().traceLow && span.context().traceHigh == root.context().traceHigh){
+                    names.add(span.service() + " " + span.name());
+                }
+            }
+            assertTrue(names.toString(), names.contains("kvpaxos-client call"));
+            assertTrue(names.toString(), names.contains("kvpaxos-server Put"));
+            assertTrue(names.toString(), names.contains("paxos propose"));
+            assertTrue(names.toString(), names.contains("paxos acceptor Accept"));
+
+            java.io.File file = java.io.File.createTempFile("trace", ".json");
+            file.deleteOnExit();
+            Tracer.exportOtlp(file);
+            String json = new String(java.nio.file.Files.readAllBytes(file.toPath()), java.nio.charset.StandardCharsets.UTF_8);
+            assertTrue(json.startsWith("{\"resourceSpans\":["));
+            assertTrue(json.contains("\"stringValue\":\"kvpaxos-server\""));
+
+            Request req = new Request(new Op("Put", 0, 0, "t", 1));
+            req.trace = root.context();
+            byte[] data = KVCodec.INSTANCE.encode(req);
+            Request decoded = (Request) KVCodec.INSTANCE.decode(data, 0, data.length);
+            assertEquals(root.context().spanId, decoded.trace.spanId);
+        } catch(Exception e){
+            fail(e.toString());
+        } finally {
+            Tracer.setSampleRate(0);
+        }
+
+        Tracer.clear();
+        assertTrue(ck.Put("t", 2));
+        assertTrue("unsampled requests are traced", Tracer.spans().isEmpty());
+        for(int i = 0; i < npaxos; i++){
+            kva[i].Kill();
+        }
+        System.out.println("... Passed");
+    }
 }
@@ -0,0 +1,13 @@
+package kvpaxos;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * RMI for clients with many ops in flight. Multi carries a Batch of Gets
+ * and Puts in one call and returns one Response per op. Kept apart from
+ * KVPaxosRMI so that the single-op protocol stays unchanged.
+ */
+public interface MultiRMI extends Remote{
+    Response Multi(Request req) throws RemoteException;
+}
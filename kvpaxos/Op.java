@@ -1,20 +1,23 @@
 package kvpaxos;
+import paxos.TraceContext;
+
 import java.io.Serializable;
 
 /**
  * You may find this class useful, free to use it.
  */
 public class Op implements Serializable{
-    static final long serialVersionUID=33L;
+    static final long serialVersionUID=34L;
     String op;
-    int ClientSeq;
+    long ClientId; // unique to the client across processes and restarts
     int opSeq;//operation sequence number
     String key;
     int value;
+    transient TraceContext trace; // the server's span of the request, not replicated
 
-    public Op(String op,int ClientSeq, int opSeq, String key, int value){
+    public Op(String op,long ClientId, int opSeq, String key, int value){
         this.op = op;
-        this.ClientSeq=ClientSeq;
+        this.ClientId=ClientId;
         this.opSeq=opSeq;
         this.key = key;
         this.value = value;
@@ -26,11 +29,16 @@ public class Op implements Serializable{
         }
         if(obj instanceof Op){
             Op op2=(Op)obj;
-            return this.op.equals(op2.op)&&this.ClientSeq==op2.ClientSeq
+            return this.op.equals(op2.op)&&this.ClientId==op2.ClientId
                     &&this.opSeq==op2.opSeq&&this.key.equals(op2.key)&&this.value==op2.value;
         }
         else{
             return false;
         }
     }
+
+    @Override
+    public int hashCode(){
+        return 31*(31*Long.hashCode(ClientId)+opSeq)+key.hashCode();
+    }
 }
@@ -1,4 +1,6 @@
 package kvpaxos;
+import paxos.TraceContext;
+
 import java.io.Serializable;
 
 /**
@@ -10,9 +12,15 @@ public class Request implements Serializable {
     static final long serialVersionUID=11L;
     // Your data here
     Op operation;
+    Batch batch; // Multi: the ops of the call, operation is null
+    TraceContext trace; // the client's span of this call, null if it is not traced
 
     // Your constructor and methods here
     public Request(Op operation){
         this.operation=operation;
     }
+
+    public Request(Batch batch){
+        this.batch=batch;
+    }
 }
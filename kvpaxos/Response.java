@@ -7,14 +7,35 @@ import java.io.Serializable;
  * Hint: Make it more generic such that you can use it for each RMI call.
  */
 public class Response implements Serializable {
-    static final long serialVersionUID=22L;
+    static final long serialVersionUID=23L;
     // your data here
     boolean isSuccess;
     int value;
+    boolean absent; // Get: the key has no value, which is a successful read
+    int leader=-1; // hint: the server clients should prefer, -1 if there is none
+    Response[] results; // Multi: the response to each op of the batch
+    ShardMap shardMap; // the key belongs to another group: the server's map
 
     // Your constructor and methods here
     public Response(boolean isSuccess, int value){
         this.isSuccess=isSuccess;
         this.value=value;
     }
+
+    /**
+     * The successful reply to a Get of a key that has no value.
+     */
+    static Response absent(){
+        Response res=new Response(true,-1);
+        res.absent=true;
+        return res;
+    }
+
+    /**
+     * What a Get returns: the value read, or null if the key has no value
+     * or the call failed.
+     */
+    Integer getValue(){
+        return !this.isSuccess||this.absent?null:this.value;
+    }
 }
@@ -1,16 +1,36 @@
 package kvpaxos;
+import paxos.AcceptorLog;
+import paxos.Metrics;
 import paxos.Paxos;
+import paxos.RmiTransport;
+import paxos.Span;
 import paxos.State;
+import paxos.TraceContext;
+import paxos.Tracer;
+import paxos.Transport;
 // You are allowed to call Paxos.Status to check if agreement was made.
 
+import java.io.File;
+import java.io.IOException;
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
-public class Server implements KVPaxosRMI {
+public class Server implements KVPaxosRMI, MultiRMI, StateTransferRMI {
+    static final String TRACE_SERVICE = "kvpaxos-server";
 
     ReentrantLock mutex;
     Registry registry;
@@ -22,20 +42,109 @@ public class Server implements KVPaxosRMI {
     KVPaxosRMI stub;
 
     // Your definitions here
-    ArrayList<Op> log;
-    HashMap<String,Integer> stateMachine;
-    int nextSeqIdx;
+    ConcurrentHashMap<String,Integer> stateMachine; // only the apply loop writes it
+    int nextSeqIdx; // next instance to apply
+    ClientSessionTable sessions; // what the state machine applied per client, guarded by mutex
+
+    // pipeline: ops queue up in pending, the proposer loop proposes them in
+    // batches on up to pipelineDepth instances at once, and the apply loop
+    // applies decided instances in order. All guarded by mutex.
+    Condition changed;
+    ArrayDeque<Op> pending;
+    HashMap<Op,CompletableFuture<Response>> waiting; // ops whose request is in progress on this server
+    HashMap<Integer,Batch> inFlight; // instances in [nextSeqIdx, nextProposeSeq) proposed by this server
+    int nextProposeSeq; // next instance the proposer loop will use
+    int pipelineDepth;
+    int batchSize;
+    long batchWindowMs;
+    static final long REQUEST_TIMEOUT_MS = 30000;
+    ArrayList<Transport> transports; // extra transports clients can reach us on
+
+    // snapshots, enabled when the server has a directory. Guarded by mutex.
+    File dir; // holds the snapshot and the Paxos acceptor log, null if nothing is persisted
+    int snapshotInterval; // instances applied between two snapshots
+    int snapshotSeq; // every instance <= snapshotSeq is covered by the snapshot on disk
+    ConcurrentHashMap<String,Object> undo; // values as of the snapshot being written, null if none is
+    ExecutorService snapshotter;
+    static final int SNAPSHOT_INTERVAL = 1000;
+
+    // catch-up: a server that is more than CATCHUP_GAP instances behind
+    // the other peers fetches the decided values in bulk, or a snapshot
+    // from another server when the peers have forgotten them
+    Transport transfer; // StateTransferRMI calls to the other servers
+    int watchedSeq; // instance whose decision will wake up the apply loop
+    static final int CATCHUP_GAP = 64;
+    static final long IDLE_CHECK_MS = 100;
+    static final long CATCHUP_RETRY_MS = 100;
+
+    // reads: Get does not go through the log. The leader serves it under
+    // its Paxos read lease, every other server after a ReadIndex round;
+    // either way only once it has applied every instance that may have been
+    // decided before the Get arrived.
+    static final long READ_WAIT_MS = 1000; // give up and order the Get through the log
+    static final long READ_FETCH_MS = 10;
+    volatile int leader; // the stable leader, sent to clients as a hint; -1 if there is none
+
+    // sharding: the server only takes keys of its group
+    volatile ShardMap shardMap; // null if the server holds every key
+    volatile int group;
+
+    Metrics metrics; // see getMetrics()
+    Metrics.Histogram getNanos; // a Get from arrival to reply
+    Metrics.Histogram putNanos; // a Put from arrival to reply
+    Metrics.Histogram waitNanos; // time blocked waiting for an instance to be decided
+    Metrics.Counter applied; // ops applied to the state machine
 
     public Server(String[] servers, int[] ports, int me){
+        this(servers, ports, me, null);
+    }
+
+    /**
+     * Create a server that keeps its state in dir: the Paxos acceptor log
+     * and periodic snapshots of the key/value state. A server restarted on
+     * the same dir loads the snapshot and replays the instances after it.
+     */
+    public Server(String[] servers, int[] ports, int me, File dir){
         this.me = me;
         this.servers = servers;
         this.ports = ports;
         this.mutex = new ReentrantLock();
-        this.px = new Paxos(me, servers, ports);
+        this.px = dir==null?new Paxos(me, servers, ports):new Paxos(me, servers, ports, new AcceptorLog(new File(dir, "wal"), false));
         // Your initialization code here
-        this.log=new ArrayList<Op>();
-        this.stateMachine=new HashMap<String,Integer>();
+        this.stateMachine=new ConcurrentHashMap<String,Integer>();
         this.nextSeqIdx=0;
+        this.sessions=new ClientSessionTable();
+        this.changed=this.mutex.newCondition();
+        this.pending=new ArrayDeque<Op>();
+        this.waiting=new HashMap<Op,CompletableFuture<Response>>();
+        this.inFlight=new HashMap<Integer,Batch>();
+        this.nextProposeSeq=0;
+        this.pipelineDepth=8;
+        this.batchSize=64;
+        this.batchWindowMs=0;
+        this.transports=new ArrayList<Transport>();
+        this.dir=dir;
+        this.snapshotInterval=SNAPSHOT_INTERVAL;
+        this.snapshotSeq=-1;
+        this.undo=null;
+        this.transfer=new RmiTransport<StateTransferRMI>("KVPaxos", ports, Server::invoke);
+        this.watchedSeq=-1;
+        this.leader=-1;
+        this.metrics=new Metrics("kvpaxos", "peer=\""+me+"\"");
+        this.getNanos=this.metrics.histogram("get_nanos");
+        this.putNanos=this.metrics.histogram("put_nanos");
+        this.waitNanos=this.metrics.histogram("wait_nanos");
+        this.applied=this.metrics.counter("ops_applied");
+        // instances accepted or decided somewhere that are not applied here yet
+        this.metrics.gauge("apply_lag", () -> Math.max(0, this.px.ClusterAccepted()-this.nextSeqIdx+1));
+        this.snapshotter=Executors.newSingleThreadExecutor(r -> {
+            Thread thread=new Thread(r, "kvpaxos-snapshot-"+me);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if(dir!=null){
+            restore();
+        }
 
         try{
             System.setProperty("java.rmi.server.hostname", this.servers[this.me]);
@@ -45,93 +154,780 @@ public class Server implements KVPaxosRMI {
         } catch(Exception e){
             e.printStackTrace();
         }
+        startLoop("kvpaxos-propose-"+me, this::proposeLoop);
+        startLoop("kvpaxos-apply-"+me, this::applyLoop);
+    }
+
+    void startLoop(String name, Runnable loop){
+        Thread thread=new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
     }
 
     //upon receiving a request
-    //start a consensus on the operation on an instance seq id
-    //if the value is same as initial, execute the op
-    //else if the op is different while comes from the same client, means that current operation
-    //        needs to be executed in next possible instance id. keep proposing until it finds a
-    //        seq id larger than Max(), use Max+1 as new consensus execution
-    //else if the op is different and comes from a different client, means that current operation
-    //
+    //queue the operation and wait for the apply loop to execute it
+    //the proposer loop proposes queued operations in batches, on up to pipelineDepth
+    //        instances at once, always on the lowest unused seq id
+    //the apply loop applies every decided instance in order; operations of ours that
+    //        lost their instance to another server's batch are queued again
+    //a Get is answered from the state machine once it is applied up to a read index
 
 
 
     // RMI handlers
     public Response Get(Request req){
         // Your code here
+        if(!owns(req.operation.key)){
+            return wrongGroup();
+        }
+        long start=System.nanoTime();
+        Span span=Tracer.child(TRACE_SERVICE, "Get", req.trace);
+        req.operation.trace=Tracer.context(span);
+        Response res=read(req.operation);
+        Tracer.end(span);
+        this.getNanos.recordSince(start);
+        return hint(res);
+    }
+
+    public Response Put(Request req){
+        // Your code here
+        if(!owns(req.operation.key)){
+            return wrongGroup();
+        }
+        long start=System.nanoTime();
+        Span span=Tracer.child(TRACE_SERVICE, "Put", req.trace);
+        req.operation.trace=Tracer.context(span);
+        Response res=execute(req.operation);
+        Tracer.end(span);
+        this.putNanos.recordSince(start);
+        return hint(res);
+    }
+
+    /**
+     * Several ops in one call. The Puts are queued together, so they can
+     * share instances, while the Gets are read; then the Puts are awaited.
+     */
+    public Response Multi(Request req){
+        ArrayList<Op> ops=req.batch.ops;
+        Span span=Tracer.child(TRACE_SERVICE, "Multi", req.trace);
+        Tracer.set(span, "ops", ops.size());
+        Response res=new Response(true,-1);
+        res.results=new Response[ops.size()];
+        ArrayList<CompletableFuture<Response>> futures=new ArrayList<CompletableFuture<Response>>(ops.size());
+        for(int i=0;i<ops.size();i++){
+            Op operation=ops.get(i);
+            operation.trace=Tracer.context(span);
+            if(!owns(operation.key)){
+                res.results[i]=wrongGroup();
+            }
+            futures.add(res.results[i]!=null||operation.op.equals("Get")?null:submit(operation));
+        }
+        for(int i=0;i<ops.size();i++){
+            if(res.results[i]==null&&futures.get(i)==null){
+                res.results[i]=read(ops.get(i));
+            }
+        }
+        for(int i=0;i<ops.size();i++){
+            if(futures.get(i)!=null){
+                res.results[i]=await(ops.get(i), futures.get(i));
+            }
+        }
+        Tracer.end(span);
+        return hint(res);
+    }
+
+    /**
+     * Make this server a member of group in shardMap. It then turns away
+     * the keys of the other groups with a copy of the map.
+     */
+    public void setShardMap(ShardMap shardMap, int group){
+        this.group=group;
+        this.shardMap=shardMap;
+    }
+
+    boolean owns(String key){
+        ShardMap shardMap=this.shardMap;
+        return shardMap==null||shardMap.group(key)==this.group;
+    }
+
+    Response wrongGroup(){
+        Response res=new Response(false,-1);
+        res.shardMap=this.shardMap;
+        return res;
+    }
+
+    /**
+     * Point the client at the stable leader: it serves reads under its
+     * lease and writes without phase 1.
+     */
+    Response hint(Response res){
+        res.leader=this.leader;
+        return res;
+    }
+
+    /**
+     * Another server asks for our state, because the instances it is
+     * missing have been forgotten. The copy is taken under mutex so that it
+     * matches nextSeqIdx exactly.
+     */
+    public Snapshot Transfer(Request req){
         mutex.lock();
         try {
-            while (true) {
-                this.px.Start(this.nextSeqIdx, req.operation);
-                Op decidedOperation = wait(this.nextSeqIdx);
-                if (decidedOperation == null) {
-                    break;
+            return new Snapshot(this.nextSeqIdx-1, new HashMap<String,Integer>(this.stateMachine), this.sessions.copy());
+        }
+        finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Handle a call that arrived over a non-RMI transport.
+     */
+    Object dispatch(String rmi, Object req){
+        if(rmi.equals("Get"))
+            return Get((Request) req);
+        else if(rmi.equals("Put"))
+            return Put((Request) req);
+        else if(rmi.equals("Multi"))
+            return Multi((Request) req);
+        else if(rmi.equals("Transfer"))
+            return Transfer((Request) req);
+        throw new IllegalArgumentException("Wrong parameters! "+rmi);
+    }
+
+    static Object invoke(StateTransferRMI stub, String rmi, Object req) throws RemoteException{
+        if(rmi.equals("Transfer"))
+            return stub.Transfer((Request) req);
+        throw new IllegalArgumentException("Wrong parameters! "+rmi);
+    }
+
+    /**
+     * Also accept client calls over transport, e.g. a NioTransport built
+     * with KV_METHODS. The RMI registration stays in place.
+     */
+    public void serve(Transport transport){
+        transport.serve(this::dispatch);
+        this.transports.add(transport);
+    }
+
+    /**
+     * Method names of the client protocol, for transports that send a code
+     * instead of the name.
+     */
+    public static final String[] KV_METHODS = {"Get", "Put", "Multi", "Transfer"};
+
+    /**
+     * Queue op and wait until the apply loop has executed it.
+     */
+    Response execute(Op op){
+        return await(op, submit(op));
+    }
+
+    /**
+     * Queue op, unless it is queued already, and return the future the
+     * apply loop completes once it has executed op. A retry of an op that
+     * was applied already is answered from the session table; the retry
+     * of a Get that is not the client's latest op is read again.
+     */
+    CompletableFuture<Response> submit(Op op){
+        CompletableFuture<Response> future;
+        long queued=System.nanoTime();
+        mutex.lock();
+        Tracer.record(TRACE_SERVICE, "mutex", op.trace, queued);
+        try {
+            int status=this.sessions.status(op.ClientId, op.opSeq);
+            Response cached=status==ClientSessionTable.APPLIED?this.sessions.reply(op.ClientId, op.opSeq):null;
+            if(cached!=null){
+                return CompletableFuture.completedFuture(cached);
+            }
+            if(op.op.equals("Put")&&status!=ClientSessionTable.NEW){
+                return CompletableFuture.completedFuture(new Response(status==ClientSessionTable.APPLIED,-1));
+            }
+            future=this.waiting.get(op);
+            if(future==null){
+                future=new CompletableFuture<Response>();
+                this.waiting.put(op, future);
+                this.pending.addLast(op);
+                this.changed.signalAll();
+            }
+        }
+        finally {
+            mutex.unlock();
+        }
+        return future;
+    }
+
+    /**
+     * Wait up to REQUEST_TIMEOUT_MS for the future submit() returned for op.
+     */
+    Response await(Op op, CompletableFuture<Response> future){
+        try {
+            return future.get(REQUEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch(TimeoutException e){
+            mutex.lock();
+            try {
+                // an in-flight op may still be applied later, nobody is waiting for it
+                this.waiting.remove(op, future);
+                this.pending.remove(op);
+            }
+            finally {
+                mutex.unlock();
+            }
+        } catch(Exception e){
+            e.printStackTrace();
+        }
+        return new Response(false,-1);
+    }
+
+    /**
+     * Answer a Get from the state machine without a Paxos instance. The
+     * read index is ClusterAccepted() while this server holds the read lease,
+     * otherwise the result of a ReadIndex round. If no majority answers or
+     * the index is not applied within READ_WAIT_MS the Get is ordered
+     * through the log like a Put.
+     */
+    Response read(Op operation){
+        int index=this.px.HasLease()?this.px.ClusterAccepted():this.px.ReadIndex();
+        if(index!=Paxos.NO_QUORUM&&awaitApplied(index, READ_WAIT_MS)){
+            mutex.lock();
+            try {
+                return result(operation);
+            }
+            finally {
+                mutex.unlock();
+            }
+        }
+        return execute(operation);
+    }
+
+    /**
+     * Wait until every instance <= index is applied, or timeoutMs. The
+     * stable leader only commits its latest instance to the other peers
+     * with its next Accept, so if nothing is applied for READ_FETCH_MS the
+     * missing instances are fetched.
+     */
+    boolean awaitApplied(int index, long timeoutMs){
+        long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while(System.nanoTime()-deadline<0){
+            int seq;
+            mutex.lock();
+            try {
+                seq=this.nextSeqIdx;
+                if(seq<=index){
+                    this.changed.await(READ_FETCH_MS, TimeUnit.MILLISECONDS);
+                }
+                if(this.nextSeqIdx>index){
+                    return true;
+                }
+                if(this.nextSeqIdx!=seq){
+                    continue;
+                }
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally {
+                mutex.unlock();
+            }
+            this.px.CatchUp(seq);
+        }
+        return false;
+    }
+
+    /**
+     * Make server leader the Paxos stable leader and the holder of the read
+     * lease. Call it with the same leader on every server; -1 turns it off.
+     */
+    public void setLeader(int leader){
+        this.leader=leader;
+        this.px.setLeader(leader);
+    }
+
+    /**
+     * Propose pending ops as one Batch on the next unused instance while
+     * fewer than pipelineDepth instances are in flight.
+     */
+    void proposeLoop(){
+        while(!this.px.isDead()){
+            int seq;
+            Batch batch;
+            TraceContext trace;
+            mutex.lock();
+            try {
+                while(this.pending.isEmpty()||this.inFlight.size()>=this.pipelineDepth){
+                    if(this.px.isDead()){
+                        return;
+                    }
+                    this.changed.await(IDLE_CHECK_MS, TimeUnit.MILLISECONDS);
+                }
+                long left=TimeUnit.MILLISECONDS.toNanos(this.batchWindowMs);
+                while(this.pending.size()<this.batchSize&&left>0){
+                    left=this.changed.awaitNanos(left);
+                }
+                ArrayList<Op> ops=new ArrayList<Op>();
+                while(!this.pending.isEmpty()&&ops.size()<this.batchSize){
+                    ops.add(this.pending.pollFirst());
+                }
+                batch=new Batch(ops);
+                trace=traceOf(ops);
+                seq=this.nextProposeSeq++;
+                this.inFlight.put(seq, batch);
+                this.changed.signalAll();
+            } catch(InterruptedException e){
+                return;
+            }
+            finally {
+                mutex.unlock();
+            }
+            this.px.Start(seq, batch, trace);
+        }
+    }
+
+    /**
+     * The trace the instance of a batch is proposed under: that of its
+     * first traced op, null if none is.
+     */
+    static TraceContext traceOf(ArrayList<Op> ops){
+        for(Op o:ops){
+            if(o.trace!=null){
+                return o.trace;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Apply decided instances in order, starting at nextSeqIdx: the ones
+     * this server proposed on, and the ones other servers got decided.
+     * Catch up first when the other peers are far ahead.
+     */
+    void applyLoop(){
+        while(!this.px.isDead()){
+            int seq;
+            mutex.lock();
+            try {
+                seq=this.nextSeqIdx;
+            }
+            finally {
+                mutex.unlock();
+            }
+            State state=this.px.Status(seq).state;
+            if(state==State.Forgotten||(state!=State.Decided&&behind(seq))){
+                catchUp(seq);
+            }
+            mutex.lock();
+            try {
+                if(seq!=this.nextSeqIdx){
+                    // a snapshot was installed
+                    continue;
+                }
+                if(!this.inFlight.containsKey(seq)&&this.px.Status(seq).state!=State.Decided){
+                    // nothing to wait for until someone gets seq decided
+                    watch(seq);
+                    this.changed.await(IDLE_CHECK_MS, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+            } catch(InterruptedException e){
+                return;
+            }
+            finally {
+                mutex.unlock();
+            }
+            // wake up now and then to see whether we fell behind meanwhile
+            Object decided=awaitDecision(seq, IDLE_CHECK_MS);
+            if(decided==null){
+                // our proposer is still running on seq, keep waiting
+                continue;
+            }
+            mutex.lock();
+            try {
+                if(seq!=this.nextSeqIdx){
+                    // a snapshot was installed meanwhile
+                    continue;
                 }
-                this.px.Done(this.nextSeqIdx);
-                this.px.Min();
                 this.nextSeqIdx++;
-                applyOperation(decidedOperation);
-                if (decidedOperation.equals(req.operation)) {
-                    return new Response(true, this.stateMachine.get(req.operation.key));
+                this.nextProposeSeq=Math.max(this.nextProposeSeq, this.nextSeqIdx);
+                applyBatch(seq, (Batch) decided);
+                Batch ours=this.inFlight.remove(seq);
+                if(ours!=null){
+                    requeue(ours);
                 }
+                applied(seq);
+                this.changed.signalAll();
+            }
+            finally {
+                mutex.unlock();
             }
-            return new Response(false,-1);
         }
-        finally {
-            mutex.unlock();
+    }
+
+    /**
+     * Whether the other peers are so far ahead of seq that fetching the
+     * decided values in bulk beats waiting for them one at a time.
+     */
+    boolean behind(int seq){
+        return this.px.ClusterMax()-seq>CATCHUP_GAP;
+    }
+
+    /**
+     * Wake up the apply loop when seq is decided. Caller holds mutex.
+     */
+    void watch(int seq){
+        if(this.watchedSeq==seq){
+            return;
         }
+        this.watchedSeq=seq;
+        this.px.Decision(seq).whenComplete((v, e) -> {
+            mutex.lock();
+            try {
+                this.changed.signalAll();
+            }
+            finally {
+                mutex.unlock();
+            }
+        });
     }
 
-    public Response Put(Request req){
-        // Your code here
+    /**
+     * Learn the instances from seq on from the other peers. If they have
+     * forgotten them, install the most recent snapshot another server can
+     * give us and learn the instances after it.
+     */
+    void catchUp(int seq){
+        if(this.px.CatchUp(seq)){
+            return;
+        }
+        Snapshot best=null;
+        for(int i=0;i<this.ports.length;i++){
+            if(i==this.me){
+                continue;
+            }
+            Snapshot snapshot=(Snapshot) this.transfer.call(i, "Transfer", new Request((Op) null));
+            if(snapshot!=null&&(best==null||snapshot.seq>best.seq)){
+                best=snapshot;
+            }
+        }
+        if(best==null||!install(best)||!this.px.CatchUp(best.seq+1)){
+            try {
+                Thread.sleep(CATCHUP_RETRY_MS);
+            } catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Replace the state with a snapshot from another server if it is ahead
+     * of ours. Ops of ours in the instances it covers go back in the queue.
+     */
+    boolean install(Snapshot snapshot){
         mutex.lock();
         try {
-            while (true) {
-                this.px.Start(this.nextSeqIdx, req.operation);
-                Op decidedOperation = wait(this.nextSeqIdx);
-                if (decidedOperation == null) {
-                    break;
+            if(snapshot.seq<this.nextSeqIdx){
+                return false;
+            }
+            if(this.undo!=null){
+                // keep a snapshot being written consistent
+                for(String key:this.stateMachine.keySet()){
+                    this.undo.putIfAbsent(key, this.stateMachine.get(key));
                 }
-                this.px.Done(this.nextSeqIdx);
-                this.px.Min();
-                this.nextSeqIdx++;
-                applyOperation(decidedOperation);
-                if (decidedOperation.equals(req.operation)) {
-                    return new Response(true, -1);
+                for(String key:snapshot.state.keySet()){
+                    this.undo.putIfAbsent(key, Snapshot.ABSENT);
                 }
             }
-            return new Response(false, -1);
+            this.stateMachine.keySet().retainAll(snapshot.state.keySet());
+            this.stateMachine.putAll(snapshot.state);
+            this.sessions=snapshot.sessions;
+            for(int seq=this.nextSeqIdx;seq<=snapshot.seq;seq++){
+                Batch ours=this.inFlight.remove(seq);
+                if(ours!=null){
+                    requeue(ours);
+                }
+            }
+            this.nextSeqIdx=snapshot.seq+1;
+            this.nextProposeSeq=Math.max(this.nextProposeSeq, this.nextSeqIdx);
+            if(this.dir==null){
+                this.px.Done(snapshot.seq);
+            } else if(this.undo==null){
+                // Done() has to wait for a snapshot of our own
+                startSnapshot(snapshot.seq);
+            }
+            this.changed.signalAll();
+            return true;
         }
         finally {
             mutex.unlock();
         }
     }
 
-    public Op wait(int seq){
-        int to=10;
-        for(int i=0;i<40;i++){
-            Paxos.retStatus ret=this.px.Status(seq);
-            if(ret.state==State.Decided){
-                return Op.class.cast(ret.v);
+    /**
+     * Put the ops of our batch that did not make it into the log back at
+     * the front of the queue. Caller holds mutex.
+     */
+    void requeue(Batch batch){
+        for(int i=batch.ops.size()-1;i>=0;i--){
+            Op o=batch.ops.get(i);
+            if(this.waiting.containsKey(o)){
+                this.pending.addFirst(o);
+                Tracer.end(Tracer.child(TRACE_SERVICE, "requeued", o.trace));
             }
-            try{
-                Thread.sleep(to);
-            } catch(Exception e){
-                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Apply decided instance seq in order and complete the request of
+     * every op this server is waiting for. An op the session table has
+     * seen already, because it was decided twice, is not applied again.
+     * Caller holds mutex.
+     */
+    void applyBatch(int seq, Batch batch){
+        for(Op operation:batch.ops){
+            int status=this.sessions.status(operation.ClientId, operation.opSeq);
+            Response res;
+            if(status==ClientSessionTable.NEW){
+                applyOperation(operation);
+                res=result(operation);
+                this.sessions.record(operation.ClientId, operation.opSeq, res, seq);
+            } else if(operation.op.equals("Get")){
+                res=result(operation);
+            } else {
+                res=new Response(status==ClientSessionTable.APPLIED,-1);
             }
-            if(to<1000){
-                to=to*2;
+            CompletableFuture<Response> future=this.waiting.remove(operation);
+            if(future!=null){
+                this.pending.remove(operation);
+                future.complete(res);
             }
         }
-        return null;
+        this.sessions.applied(seq);
+    }
+
+    Response result(Op operation){
+        if(operation.op.equals("Get")){
+            Integer value=this.stateMachine.get(operation.key);
+            return value==null?Response.absent():new Response(true,value);
+        }
+        return new Response(true,-1);
+    }
+
+    /**
+     * Configure batching: at most size ops per instance, and wait up to
+     * windowMs for a batch to fill before proposing it.
+     */
+    public void setBatching(int size, long windowMs){
+        mutex.lock();
+        try {
+            this.batchSize=size;
+            this.batchWindowMs=windowMs;
+        }
+        finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Configure how many instances this server may have in flight at once.
+     */
+    public void setPipelineDepth(int depth){
+        mutex.lock();
+        try {
+            this.pipelineDepth=depth;
+            this.changed.signalAll();
+        }
+        finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Block until seq is decided and return its value, or null if that
+     * takes longer than REQUEST_TIMEOUT_MS.
+     */
+    public Object wait(int seq){
+        return awaitDecision(seq, REQUEST_TIMEOUT_MS);
+    }
+
+    /**
+     * Block until seq is decided and return its value, or null if that
+     * takes longer than timeoutMs or seq has been forgotten.
+     */
+    Object awaitDecision(int seq, long timeoutMs){
+        long start=System.nanoTime();
+        try{
+            return this.px.Decision(seq).get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch(TimeoutException e){
+            return null;
+        } catch(ExecutionException e){
+            // forgotten; the apply loop catches up
+            return null;
+        } catch(Exception e){
+            e.printStackTrace();
+            return null;
+        } finally {
+            this.waitNanos.recordSince(start);
+        }
     }
 
     void applyOperation(Op operation){
+        this.applied.increment();
         if(operation.op.equals("Put")){
+            if(this.undo!=null){
+                // keep the value the snapshot in progress has to see
+                Integer old=this.stateMachine.get(operation.key);
+                this.undo.putIfAbsent(operation.key, old==null?Snapshot.ABSENT:old);
+            }
             this.stateMachine.put(operation.key,operation.value);
         }
     }
 
+    /**
+     * Called by the apply loop after instance seq was applied. Without a
+     * dir the instance can be forgotten right away; otherwise only once a
+     * snapshot covers it, so a snapshot is started every snapshotInterval
+     * instances. Caller holds mutex.
+     */
+    void applied(int seq){
+        if(this.dir==null){
+            this.px.Done(seq);
+            return;
+        }
+        if(this.undo==null&&seq-this.snapshotSeq>=this.snapshotInterval){
+            startSnapshot(seq);
+        }
+    }
+
+    /**
+     * Start writing the state as of seq in the background. Caller holds
+     * mutex and no other snapshot is being written.
+     */
+    void startSnapshot(int seq){
+        this.undo=new ConcurrentHashMap<String,Object>();
+        final ConcurrentHashMap<String,Object> saved=this.undo;
+        final ClientSessionTable sessions=this.sessions.copy();
+        this.snapshotter.execute(() -> snapshot(seq, saved, sessions));
+    }
+
+    /**
+     * Write the state as of seq in the background, then let Paxos forget
+     * every instance up to seq.
+     */
+    void snapshot(int seq, ConcurrentHashMap<String,Object> saved, ClientSessionTable sessions){
+        boolean written=false;
+        try {
+            Snapshot.write(this.dir, seq, this.stateMachine, saved, sessions);
+            written=true;
+        } catch(IOException e){
+            e.printStackTrace();
+        }
+        mutex.lock();
+        try {
+            this.undo=null;
+            if(written){
+                this.snapshotSeq=seq;
+                this.px.Done(seq);
+            }
+        }
+        finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Load the snapshot in dir, if any, and apply the decided instances
+     * that follow it. Called from the constructor before the loops start.
+     */
+    void restore(){
+        try {
+            Snapshot snapshot=Snapshot.load(this.dir);
+            if(snapshot!=null){
+                this.stateMachine.putAll(snapshot.state);
+                this.sessions=snapshot.sessions;
+                this.snapshotSeq=snapshot.seq;
+                this.nextSeqIdx=snapshot.seq+1;
+                this.px.Done(snapshot.seq);
+            }
+        } catch(IOException e){
+            throw new java.io.UncheckedIOException(e);
+        }
+        Paxos.retStatus ret=this.px.Status(this.nextSeqIdx);
+        while(ret.state==State.Decided){
+            applyBatch(this.nextSeqIdx, (Batch) ret.v);
+            this.nextSeqIdx++;
+            ret=this.px.Status(this.nextSeqIdx);
+        }
+        this.nextProposeSeq=this.nextSeqIdx;
+    }
+
+    /**
+     * Stop serving, as if the server had crashed. For testing.
+     */
+    public void Kill(){
+        this.px.Kill();
+        mutex.lock();
+        try {
+            // wake the proposer loop so it sees px is dead
+            this.changed.signalAll();
+        }
+        finally {
+            mutex.unlock();
+        }
+        try {
+            UnicastRemoteObject.unexportObject(this, true);
+        } catch(Exception e){
+            // never exported
+        }
+        for(Transport transport:this.transports){
+            transport.close();
+        }
+        this.snapshotter.shutdown();
+        this.metrics.unexport();
+        this.px.getMetrics().unexport();
+    }
+
+    /**
+     * Request latencies, decision wait time, ops applied and apply lag of
+     * this server. Its Paxos peer keeps its own, see Paxos.getMetrics().
+     */
+    public Metrics getMetrics(){
+        return this.metrics;
+    }
+
+    /**
+     * Register the metrics of this server and of its Paxos peer with JMX as
+     * kvpaxos:type=Server,group=G,peer=ME and paxos:type=Paxos,group=G,peer=ME.
+     * Kill() unregisters them.
+     */
+    public void exportMetrics(){
+        String name="group="+this.group+",peer="+this.me;
+        this.metrics.export("kvpaxos:type=Server,"+name);
+        this.px.getMetrics().export("paxos:type=Paxos,"+name);
+    }
+
+    /**
+     * Configure how many instances a client session may be idle before it
+     * is expired. Must be the same on every server.
+     */
+    public void setSessionTtl(int ttl){
+        mutex.lock();
+        try {
+            this.sessions.setTtl(ttl);
+        }
+        finally {
+            mutex.unlock();
+        }
+    }
+
+    /**
+     * Configure how many instances are applied between two snapshots.
+     */
+    public void setSnapshotInterval(int interval){
+        mutex.lock();
+        try {
+            this.snapshotInterval=interval;
+        }
+        finally {
+            mutex.unlock();
+        }
+    }
+
 }
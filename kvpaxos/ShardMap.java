@@ -0,0 +1,49 @@
+package kvpaxos;
+import java.io.Serializable;
+
+/**
+ * Which Paxos group serves which key. The key space is cut into a fixed
+ * number of shards by the key's hash, and every shard is assigned to one
+ * group; a group is a set of Servers with its own Paxos log and its own
+ * part of the state. Clients cache the map and route by it. A server that
+ * gets a key of another group answers with its own map, and a client
+ * switches to it if it is newer than the one it has.
+ */
+public class ShardMap implements Serializable {
+    static final long serialVersionUID=77L;
+    int version; // a newer map has a higher version
+    int[] shardGroup; // group serving each shard
+    String[][] servers; // hosts of each group's servers
+    int[][] ports; // ports of each group's servers
+
+    public ShardMap(int version, int[] shardGroup, String[][] servers, int[][] ports){
+        this.version=version;
+        this.shardGroup=shardGroup;
+        this.servers=servers;
+        this.ports=ports;
+    }
+
+    /**
+     * A map with the given number of shards spread round-robin over the
+     * groups.
+     */
+    public static ShardMap uniform(int version, int shards, String[][] servers, int[][] ports){
+        int[] shardGroup=new int[shards];
+        for(int s=0;s<shards;s++){
+            shardGroup[s]=s%servers.length;
+        }
+        return new ShardMap(version, shardGroup, servers, ports);
+    }
+
+    public int shard(String key){
+        return Math.floorMod(key.hashCode(), this.shardGroup.length);
+    }
+
+    public int group(String key){
+        return this.shardGroup[shard(key)];
+    }
+
+    public int groups(){
+        return this.servers.length;
+    }
+}
@@ -0,0 +1,65 @@
+package kvpaxos;
+
+/**
+ * Client of a sharded cluster. It caches a ShardMap and sends each op to
+ * a Client of the group that serves the key. When a server says the key
+ * is not its group's and sends a newer map, the client switches to that
+ * map and tries again.
+ */
+public class ShardedClient {
+    volatile ShardMap shardMap;
+    volatile Client[] clients; // one per group of shardMap
+    static final int MAX_REDIRECTS = 3;
+
+    public ShardedClient(ShardMap shardMap){
+        setShardMap(shardMap);
+    }
+
+    synchronized void setShardMap(ShardMap shardMap){
+        if(this.shardMap!=null&&shardMap.version<=this.shardMap.version){
+            return;
+        }
+        Client[] clients=new Client[shardMap.groups()];
+        for(int g=0;g<clients.length;g++){
+            clients[g]=new Client(shardMap.servers[g], shardMap.ports[g]);
+        }
+        this.clients=clients;
+        this.shardMap=shardMap;
+    }
+
+    public Integer Get(String key){
+        Response res=route("Get", key, -1);
+        return res==null?null:res.getValue();
+    }
+
+    public boolean Put(String key, Integer value){
+        Response res=route("Put", key, value);
+        return res!=null&&res.isSuccess;
+    }
+
+    /**
+     * Send the op to the group of key, following up to MAX_REDIRECTS newer
+     * maps. Returns null if no server of the group answered.
+     */
+    Response route(String op, String key, int value){
+        for(int i=0;i<=MAX_REDIRECTS;i++){
+            ShardMap shardMap=this.shardMap;
+            Client ck=this.clients[shardMap.group(key)];
+            Op operation=new Op(op,ck.clientId,ck.opSeq.getAndIncrement(),key,value);
+            Response res=ck.send(op, new Request(operation));
+            if(res==null||res.shardMap==null){
+                return res;
+            }
+            if(res.shardMap.version<=shardMap.version){
+                // the server has no newer map than ours
+                return null;
+            }
+            setShardMap(res.shardMap);
+        }
+        return null;
+    }
+
+    public ShardMap getShardMap(){
+        return this.shardMap;
+    }
+}
@@ -0,0 +1,47 @@
+package kvpaxos;
+
+/**
+ * One process of a sharded cluster: a Server in every group of the shard
+ * map, each with its own Paxos peer, log and state, so the groups agree
+ * on their instances independently and in parallel. Node me runs server
+ * me of every group.
+ */
+public class ShardedServer {
+    ShardMap shardMap;
+    int me;
+    Server[] groups;
+
+    public ShardedServer(ShardMap shardMap, int me){
+        this.shardMap=shardMap;
+        this.me=me;
+        this.groups=new Server[shardMap.groups()];
+        for(int g=0;g<this.groups.length;g++){
+            this.groups[g]=new Server(shardMap.servers[g], shardMap.ports[g], me);
+            this.groups[g].setShardMap(shardMap, g);
+        }
+    }
+
+    /**
+     * The server of group g on this node.
+     */
+    public Server group(int g){
+        return this.groups[g];
+    }
+
+    /**
+     * Give every group a new map. Shards that change groups are not moved:
+     * the new owner starts them empty.
+     */
+    public void setShardMap(ShardMap shardMap){
+        this.shardMap=shardMap;
+        for(int g=0;g<this.groups.length;g++){
+            this.groups[g].setShardMap(shardMap, g);
+        }
+    }
+
+    public void Kill(){
+        for(Server server:this.groups){
+            server.Kill();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package kvpaxos;
+import paxos.AcceptorLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A snapshot of the key/value state of a Server as of instance seq, i.e.
+ * after every instance <= seq has been applied.
+ * <p>
+ * write() streams the live state machine to disk while the apply loop
+ * keeps running. The apply loop saves the value a key had at seq into
+ * undo before it first changes or removes that key (ABSENT if the key did
+ * not exist yet), and write() prefers that saved value over the live one
+ * and also writes the saved keys that are gone from live. The file
+ * is written to a temporary name, synced and renamed over the previous
+ * snapshot, and the directory is synced, so a crash leaves either the old
+ * or the new one.
+ * <p>
+ * The client session table is part of the state; write() gets a copy
+ * taken at seq. A Snapshot is also what StateTransferRMI.Transfer sends
+ * to a server that fell behind.
+ */
+public class Snapshot implements Serializable {
+    static final long serialVersionUID=55L;
+    static final int MAGIC = 0x4B565350; // "KVSP"
+    static final int VERSION = 4;
+    static final String FILE = "snapshot";
+    static final Object ABSENT = new Object();
+
+    int seq;
+    HashMap<String,Integer> state;
+    ClientSessionTable sessions;
+
+    Snapshot(int seq, HashMap<String,Integer> state, ClientSessionTable sessions){
+        this.seq=seq;
+        this.state=state;
+        this.sessions=sessions;
+    }
+
+    /**
+     * Write the state as of seq to dir/snapshot.
+     */
+    static void write(File dir, int seq, ConcurrentHashMap<String,Integer> live, ConcurrentHashMap<String,Object> undo, ClientSessionTable sessions) throws IOException {
+        File tmp=new File(dir, FILE+".tmp");
+        FileOutputStream file=new FileOutputStream(tmp);
+        try(DataOutputStream out=new DataOutputStream(new BufferedOutputStream(file, 1<<16))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(seq);
+            for(Map.Entry<String,Integer> entry:live.entrySet()){
+                Object value=entry.getValue();
+                // read undo after the live value: the apply loop writes it first
+                Object before=undo.get(entry.getKey());
+                if(before!=null){
+                    value=before;
+                }
+                if(value==ABSENT){
+                    continue;
+                }
+                out.writeBoolean(true);
+                out.writeUTF(entry.getKey());
+                out.writeInt((Integer) value);
+            }
+            // keys the apply loop removed from live, e.g. by installing a
+            // snapshot from another server. A key written above may come
+            // again, with the same value as of seq.
+            for(Map.Entry<String,Object> entry:undo.entrySet()){
+                if(entry.getValue()==ABSENT){
+                    continue;
+                }
+                out.writeBoolean(true);
+                out.writeUTF(entry.getKey());
+                out.writeInt((Integer) entry.getValue());
+            }
+            out.writeBoolean(false);
+            sessions.write(out);
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(tmp.toPath(), new File(dir, FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // the rename is only durable once the directory is, and the
+        // instances the snapshot covers are forgotten after we return
+        AcceptorLog.syncDirectory(dir);
+    }
+
+    /**
+     * The snapshot in dir, or null if there is none.
+     */
+    static Snapshot load(File dir) throws IOException {
+        File f=new File(dir, FILE);
+        if(!f.exists()){
+            return null;
+        }
+        try(DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1<<16))){
+            if(in.readInt()!=MAGIC){
+                throw new IOException("not a snapshot: "+f);
+            }
+            int version=in.readInt();
+            if(version!=VERSION){
+                throw new IOException("unsupported snapshot version "+version);
+            }
+            int seq=in.readInt();
+            HashMap<String,Integer> state=new HashMap<String,Integer>();
+            while(in.readBoolean()){
+                String key=in.readUTF();
+                state.put(key, in.readInt());
+            }
+            return new Snapshot(seq, state, ClientSessionTable.read(in));
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package kvpaxos;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * RMI between servers. A server that has fallen behind further than the
+ * Paxos peers still remember asks another server for a Snapshot of its
+ * state and continues from there. Kept apart from KVPaxosRMI, which is
+ * the client protocol.
+ */
+public interface StateTransferRMI extends Remote{
+    Snapshot Transfer(Request req) throws RemoteException;
+}
@@ -0,0 +1,504 @@
+package paxos;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of the acceptor state of one Paxos peer.
+ * An acceptor appends a record while it holds the instance lock and
+ * calls sync() after releasing it, before it replies. A single flusher
+ * thread fsyncs whatever has been appended so far, so all the acceptor
+ * threads that wait during one fsync are covered by the next one (group
+ * commit).
+ * <p>
+ * Replay is order-independent: promises and range promises keep their
+ * maximum, the accepted value with the highest proposal number wins and
+ * a decision sticks. That lets checkpoint() start a new generation file
+ * and copy the live state into it while acceptors keep appending, and
+ * lets recovery read every generation file that is still on disk.
+ * <p>
+ * A file is a header (MAGIC, mode, segment size) followed by records
+ * <pre>
+ *   int length | int crc32 | byte type | fields
+ * </pre>
+ * Recovery stops at the first record that is cut short or fails its CRC.
+ * In memory-mapped mode the file is mapped SEGMENT_BYTES at a time; a
+ * length of -1 (or fewer than 8 bytes left) skips to the next segment.
+ */
+public class AcceptorLog {
+    static final int MAGIC = 0x50585741; // "PXWA"
+    static final int HEADER = 4 + 1 + 4;
+    static final int SKIP = -1;
+    static final byte PROMISE = 1;
+    static final byte ACCEPT = 2;
+    static final byte RANGE = 3;
+    static final byte DECIDE = 4;
+    static final byte DONE = 5;
+    static final byte BALLOT = 6;
+    public static final int SEGMENT_BYTES = 16 << 20;
+    public static final long CHECKPOINT_BYTES = 64L << 20;
+
+    File dir;
+    boolean mmap;
+    long checkpointBytes;
+
+    // guarded by this
+    int generation; // number of the file being appended to
+    FileChannel channel;
+    MappedByteBuffer segment; // mmap mode: the mapped part of the file being written
+    long segmentStart; // file offset of segment
+    long filePos; // bytes used in the current file
+    long written; // logical bytes appended over all generations
+    long requested; // highest position a caller is waiting on
+    volatile long durable; // logical bytes known to be on disk
+    IOException failure; // the log is unusable once an append or fsync failed
+    boolean closed;
+    CRC32 crc;
+    ByteBuffer frame; // FileChannel mode: a record with its length and crc
+    Thread flusher;
+
+    static final ThreadLocal<ByteBuf> RECORD = ThreadLocal.withInitial(() -> new ByteBuf(256));
+
+    /**
+     * Replay target for recover().
+     */
+    public interface Replay {
+        void promise(int seq, int n);
+
+        void accept(int seq, int n, Payload value);
+
+        void range(int from, int n);
+
+        void decide(int seq, Payload value);
+
+        void done(int peer, int done);
+
+        void ballot(int n);
+    }
+
+    /**
+     * A log kept in dir. Nothing is read or written until recover().
+     *
+     * @param mmap write through memory-mapped segments instead of FileChannel.write()
+     */
+    public AcceptorLog(File dir, boolean mmap) {
+        this.dir = dir;
+        this.mmap = mmap;
+        this.checkpointBytes = CHECKPOINT_BYTES;
+        this.generation = -1;
+        this.crc = new CRC32();
+        this.frame = ByteBuffer.allocate(1024);
+    }
+
+    public void setCheckpointBytes(long checkpointBytes) {
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    /**
+     * Replay every generation on disk into target, then start appending to
+     * a fresh generation. The caller should checkpoint() next so that the
+     * old generations can be deleted.
+     */
+    public synchronized void recover(Replay target) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        int last = -1;
+        for (int gen : generations()) {
+            replay(file(gen), target);
+            last = Math.max(last, gen);
+        }
+        open(last + 1);
+        flusher = new Thread(this::flushLoop, "paxos-wal-" + dir.getName());
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    int[] generations() {
+        String[] names = dir.list();
+        int[] gens = new int[names == null ? 0 : names.length];
+        int n = 0;
+        for (int i = 0; i < gens.length; i++) {
+            if (names[i].startsWith("acceptor.") && names[i].endsWith(".log")) {
+                try {
+                    gens[n++] = Integer.parseInt(names[i].substring(9, names[i].length() - 4));
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+        gens = Arrays.copyOf(gens, n);
+        Arrays.sort(gens);
+        return gens;
+    }
+
+    File file(int gen) {
+        return new File(dir, "acceptor." + gen + ".log");
+    }
+
+    void replay(File f, Replay target) throws IOException {
+        try (FileChannel in = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            if (in.read(header, 0) < HEADER || header.getInt(0) != MAGIC) {
+                return; // crashed before the header made it out
+            }
+            boolean segmented = header.get(4) != 0;
+            long segmentBytes = header.getInt(5);
+            long size = in.size();
+            long pos = HEADER;
+            ByteBuffer prefix = ByteBuffer.allocate(8);
+            CRC32 check = new CRC32();
+            while (true) {
+                if (segmented && segmentBytes - pos % segmentBytes < 8) {
+                    pos = (pos / segmentBytes + 1) * segmentBytes;
+                }
+                prefix.clear();
+                if (pos + 8 > size || in.read(prefix, pos) < 8) {
+                    return;
+                }
+                int length = prefix.getInt(0);
+                if (length == SKIP && segmented) {
+                    pos = (pos / segmentBytes + 1) * segmentBytes;
+                    continue;
+                }
+                if (length <= 0 || pos + 8 + length > size) {
+                    return; // end of the log, or a torn write
+                }
+                ByteBuffer body = ByteBuffer.allocate(length);
+                if (in.read(body, pos + 8) < length) {
+                    return;
+                }
+                check.reset();
+                check.update(body.array(), 0, length);
+                if ((int) check.getValue() != prefix.getInt(4)) {
+                    return;
+                }
+                apply(ByteBuf.wrap(body.array(), 0, length), target);
+                pos += 8 + length;
+            }
+        }
+    }
+
+    static void apply(ByteBuf in, Replay target) throws IOException {
+        int type = in.readByte();
+        switch (type) {
+            case PROMISE:
+                target.promise(in.readVarInt(), in.readVarInt());
+                break;
+            case ACCEPT: {
+                int seq = in.readVarInt();
+                int n = in.readVarInt();
+                target.accept(seq, n, in.readPayload());
+                break;
+            }
+            case RANGE: {
+                int from = in.readVarInt();
+                target.range(from, in.readVarInt());
+                break;
+            }
+            case DECIDE: {
+                int seq = in.readVarInt();
+                target.decide(seq, in.readPayload());
+                break;
+            }
+            case DONE: {
+                int peer = in.readVarInt();
+                target.done(peer, in.readVarInt());
+                break;
+            }
+            case BALLOT:
+                target.ballot(in.readVarInt());
+                break;
+            default:
+                throw new IOException("unknown record type " + type);
+        }
+    }
+
+    /**
+     * Start appending to generation gen. Caller holds the lock.
+     */
+    void open(int gen) throws IOException {
+        FileChannel ch = FileChannel.open(file(gen).toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putInt(MAGIC).put((byte) (mmap ? 1 : 0)).putInt(SEGMENT_BYTES).flip();
+        while (header.hasRemaining()) {
+            ch.write(header);
+        }
+        // the new file's directory entry has to be durable before
+        // deleteThrough() removes the generations it replaces
+        syncDirectory(dir);
+        channel = ch;
+        generation = gen;
+        filePos = HEADER;
+        segment = null;
+        if (mmap) {
+            segmentStart = 0;
+            segment = ch.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        }
+    }
+
+    // ---------- appending ----------
+
+    public long promise(int seq, int n) {
+        return append(RECORD.get().writeByte(PROMISE).writeVarInt(seq).writeVarInt(n));
+    }
+
+    public long accept(int seq, int n, Object value, ValueCodec codec) {
+        ByteBuf out = RECORD.get().writeByte(ACCEPT).writeVarInt(seq).writeVarInt(n);
+        return append(writeValue(out, value, codec));
+    }
+
+    public long range(int from, int n) {
+        return append(RECORD.get().writeByte(RANGE).writeVarInt(from).writeVarInt(n));
+    }
+
+    public long decide(int seq, Object value, ValueCodec codec) {
+        ByteBuf out = RECORD.get().writeByte(DECIDE).writeVarInt(seq);
+        return append(writeValue(out, value, codec));
+    }
+
+    public long done(int peer, int done) {
+        return append(RECORD.get().writeByte(DONE).writeVarInt(peer).writeVarInt(done));
+    }
+
+    /**
+     * Record that the proposer may have used proposal numbers up to n.
+     */
+    public long ballot(int n) {
+        return append(RECORD.get().writeByte(BALLOT).writeVarInt(n));
+    }
+
+    static ByteBuf writeValue(ByteBuf out, Object value, ValueCodec codec) {
+        try {
+            return out.writePayload(value, codec);
+        } catch (IOException e) {
+            out.clear();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Append the record in out (this thread's RECORD buffer, encoded
+     * outside the lock) and return the position sync() has to reach for
+     * it to be durable.
+     */
+    long append(ByteBuf out) {
+        try {
+            int length = out.writerIndex();
+            synchronized (this) {
+                if (failure != null) {
+                    throw new UncheckedIOException(failure);
+                }
+                crc.reset();
+                crc.update(out.array(), 0, length);
+                int sum = (int) crc.getValue();
+                try {
+                    if (mmap) {
+                        appendMapped(out.array(), length, sum);
+                    } else {
+                        if (frame.capacity() < 8 + length) {
+                            frame = ByteBuffer.allocate(Math.max(8 + length, frame.capacity() * 2));
+                        }
+                        ByteBuffer buf = frame;
+                        buf.clear();
+                        buf.putInt(length).putInt(sum).put(out.array(), 0, length).flip();
+                        while (buf.hasRemaining()) {
+                            filePos += channel.write(buf, filePos);
+                        }
+                    }
+                } catch (IOException e) {
+                    failure = e;
+                    throw new UncheckedIOException(e);
+                }
+                written += 8 + length;
+                return written;
+            }
+        } finally {
+            out.clear();
+        }
+    }
+
+    /**
+     * Copy a record into the mapped segment, moving on to the next segment
+     * when it does not fit. Caller holds the lock.
+     */
+    void appendMapped(byte[] body, int length, int sum) throws IOException {
+        if (8 + length > SEGMENT_BYTES) {
+            throw new IOException("record of " + length + " bytes does not fit in a segment");
+        }
+        int offset = (int) (filePos - segmentStart);
+        if (offset + 8 + length > SEGMENT_BYTES) {
+            if (SEGMENT_BYTES - offset >= 8) {
+                segment.putInt(offset, SKIP);
+            }
+            // everything before the new segment is made durable here, so
+            // the flusher only ever has to force the current one
+            segment.force();
+            segmentStart += SEGMENT_BYTES;
+            filePos = segmentStart;
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_BYTES);
+            offset = 0;
+            durable = Math.max(durable, written);
+            notifyAll();
+        }
+        segment.putInt(offset, length);
+        segment.putInt(offset + 4, sum);
+        segment.put(offset + 8, body, 0, length);
+        filePos += 8 + length;
+    }
+
+    /**
+     * Block until everything up to position is on disk.
+     */
+    public void sync(long position) {
+        if (position <= durable) {
+            return;
+        }
+        synchronized (this) {
+            if (position > requested) {
+                requested = position;
+                notifyAll();
+            }
+            boolean interrupted = false;
+            while (durable < position) {
+                if (failure != null) {
+                    throw new UncheckedIOException(failure);
+                }
+                if (closed) {
+                    throw new IllegalStateException("acceptor log is closed");
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Position of the last record appended.
+     */
+    public synchronized long position() {
+        return written;
+    }
+
+    void flushLoop() {
+        while (true) {
+            long target;
+            FileChannel ch;
+            MappedByteBuffer seg;
+            synchronized (this) {
+                while (requested <= durable && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // only close() stops the flusher
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                target = written;
+                ch = channel;
+                seg = segment;
+            }
+            try {
+                if (seg != null) {
+                    seg.force();
+                } else {
+                    ch.force(false);
+                }
+            } catch (ClosedChannelException e) {
+                // checkpoint() closed the file after forcing it itself
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                durable = Math.max(durable, target);
+                notifyAll();
+            }
+        }
+    }
+
+    // ---------- checkpoints ----------
+
+    /**
+     * Whether the current generation has grown past the checkpoint size.
+     */
+    public synchronized boolean needsCheckpoint() {
+        return filePos >= checkpointBytes;
+    }
+
+    /**
+     * Make everything written so far durable and start a new generation.
+     * Returns the generation that was closed; once the live state has been
+     * appended to the new one and synced, deleteThrough() may remove it.
+     */
+    public synchronized int rotate() throws IOException {
+        if (segment != null) {
+            segment.force();
+        } else {
+            channel.force(false);
+        }
+        channel.close();
+        durable = Math.max(durable, written);
+        notifyAll();
+        int old = generation;
+        open(old + 1);
+        return old;
+    }
+
+    /**
+     * Make the entries of dir durable, e.g. a file just created or renamed
+     * in it. Syncing the file itself does not.
+     */
+    public static void syncDirectory(File dir) throws IOException {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        }
+    }
+
+    /**
+     * Delete generation gen and every generation before it.
+     */
+    public void deleteThrough(int gen) {
+        for (int g : generations()) {
+            if (g <= gen && !file(g).delete()) {
+                System.out.println("could not delete " + file(g));
+            }
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
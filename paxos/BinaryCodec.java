@@ -0,0 +1,132 @@
+package paxos;
+import java.io.IOException;
+
+/**
+ * Hand-written encoding of the Paxos messages. Every message starts with
+ * a version byte and a type tag; ints are zigzag varints, so the usual
+ * small seqs, proposal numbers and peer ids take one or two bytes.
+ * Proposed values are written by the ValueCodec as opaque byte slices and
+ * come back as Payloads, so an acceptor stores and forwards them without
+ * ever deserializing them. Unknown message types fall back to Java
+ * serialization.
+ */
+public class BinaryCodec implements MessageCodec {
+    public static final int VERSION = 5;
+    static final int NULL = 0;
+    static final int REQUEST = 1;
+    static final int RESPONSE = 2;
+    static final int SERIALIZED = 127;
+
+    ValueCodec values;
+
+    public BinaryCodec(ValueCodec values) {
+        this.values = values;
+    }
+
+    public BinaryCodec() {
+        this(ValueCodec.JAVA);
+    }
+
+    @Override
+    public void encode(Object msg, ByteBuf out) throws IOException {
+        out.writeByte(VERSION);
+        if (msg == null) {
+            out.writeByte(NULL);
+        } else if (msg instanceof Request) {
+            Request req = (Request) msg;
+            out.writeByte(REQUEST);
+            out.writeVarInt(req.seq);
+            out.writeVarInt(req.proposalNumber);
+            out.writeVarInt(req.me);
+            out.writeVarInt(req.highestDone);
+            out.writeBoolean(req.range);
+            out.writeVarInt(req.commitSeq);
+            out.writeVarInt(req.count);
+            out.writeVarInt(req.minDone);
+            out.writeBoolean(req.lease);
+            TraceContext.write(req.trace, out);
+            out.writePayload(req.value, values);
+            out.writePayload(req.commitValue, values);
+        } else if (msg instanceof Response) {
+            Response resp = (Response) msg;
+            out.writeByte(RESPONSE);
+            out.writeBoolean(resp.ack);
+            out.writeVarInt(resp.proposalNumber);
+            out.writeVarInt(resp.numberAccepted);
+            out.writeVarInt(resp.maxSeq);
+            out.writeVarInt(resp.acceptedSeq);
+            out.writeVarInt(resp.highestDone);
+            out.writeVarInt(resp.leaseHolder);
+            out.writePayload(resp.valueAccepted, values);
+            out.writeVarInt(resp.values == null ? -1 : resp.values.length);
+            if (resp.values != null) {
+                for (Object value : resp.values) {
+                    out.writePayload(value, values);
+                }
+            }
+        } else {
+            out.writeByte(SERIALIZED);
+            ValueCodec.JAVA.write(msg, out);
+        }
+    }
+
+    @Override
+    public Object decode(ByteBuf in) throws IOException {
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new IOException("unsupported codec version " + version);
+        }
+        int type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case REQUEST: {
+                int seq = in.readVarInt();
+                int proposalNumber = in.readVarInt();
+                int me = in.readVarInt();
+                int highestDone = in.readVarInt();
+                boolean range = in.readBoolean();
+                int commitSeq = in.readVarInt();
+                int count = in.readVarInt();
+                int minDone = in.readVarInt();
+                boolean lease = in.readBoolean();
+                TraceContext trace = TraceContext.read(in);
+                Request req = new Request(seq, proposalNumber, in.readPayload(), me, highestDone);
+                req.range = range;
+                req.commitSeq = commitSeq;
+                req.count = count;
+                req.minDone = minDone;
+                req.lease = lease;
+                req.trace = trace;
+                req.commitValue = in.readPayload();
+                return req;
+            }
+            case RESPONSE: {
+                boolean ack = in.readBoolean();
+                int proposalNumber = in.readVarInt();
+                int numberAccepted = in.readVarInt();
+                int maxSeq = in.readVarInt();
+                int acceptedSeq = in.readVarInt();
+                int highestDone = in.readVarInt();
+                int leaseHolder = in.readVarInt();
+                Response resp = new Response(ack, proposalNumber, numberAccepted, in.readPayload());
+                resp.maxSeq = maxSeq;
+                resp.acceptedSeq = acceptedSeq;
+                resp.highestDone = highestDone;
+                resp.leaseHolder = leaseHolder;
+                int n = in.readVarInt();
+                if (n >= 0) {
+                    resp.values = new Object[n];
+                    for (int i = 0; i < n; i++) {
+                        resp.values[i] = in.readPayload();
+                    }
+                }
+                return resp;
+            }
+            case SERIALIZED:
+                return ValueCodec.JAVA.read(in);
+            default:
+                throw new IOException("unknown message type " + type);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package paxos;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable byte array with separate write and read positions, used by
+ * the binary codecs. Ints are written as zigzag varints and strings as a
+ * varint length followed by UTF-8. A buffer can be clear()ed and reused,
+ * so steady-state encoding does not allocate.
+ */
+public class ByteBuf {
+    byte[] array;
+    int readPos;
+    int writePos;
+
+    public ByteBuf(int capacity) {
+        this.array = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * A buffer for reading array[offset, offset + length) without copying.
+     */
+    public static ByteBuf wrap(byte[] array, int offset, int length) {
+        ByteBuf buf = new ByteBuf(0);
+        buf.array = array;
+        buf.readPos = offset;
+        buf.writePos = offset + length;
+        return buf;
+    }
+
+    public void clear() {
+        readPos = 0;
+        writePos = 0;
+    }
+
+    public byte[] array() {
+        return array;
+    }
+
+    public int readerIndex() {
+        return readPos;
+    }
+
+    public int writerIndex() {
+        return writePos;
+    }
+
+    public void writerIndex(int index) {
+        ensure(index - writePos);
+        writePos = index;
+    }
+
+    public int readable() {
+        return writePos - readPos;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOfRange(array, readPos, writePos);
+    }
+
+    void ensure(int n) {
+        if (writePos + n > array.length) {
+            array = Arrays.copyOf(array, Math.max(array.length * 2, writePos + n));
+        }
+    }
+
+    // ---------- writing ----------
+
+    public ByteBuf writeByte(int b) {
+        ensure(1);
+        array[writePos++] = (byte) b;
+        return this;
+    }
+
+    public ByteBuf writeBoolean(boolean b) {
+        return writeByte(b ? 1 : 0);
+    }
+
+    public ByteBuf writeVarInt(int v) {
+        return writeVarLong(v);
+    }
+
+    public ByteBuf writeVarLong(long v) {
+        long zigzag = (v << 1) ^ (v >> 63);
+        ensure(10);
+        while ((zigzag & ~0x7FL) != 0) {
+            array[writePos++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        array[writePos++] = (byte) zigzag;
+        return this;
+    }
+
+    public ByteBuf writeInt(int v) {
+        ensure(4);
+        setInt(writePos, v);
+        writePos += 4;
+        return this;
+    }
+
+    public void setInt(int index, int v) {
+        array[index] = (byte) (v >>> 24);
+        array[index + 1] = (byte) (v >>> 16);
+        array[index + 2] = (byte) (v >>> 8);
+        array[index + 3] = (byte) v;
+    }
+
+    public ByteBuf writeLong(long v) {
+        ensure(8);
+        for (int i = 7; i >= 0; i--) {
+            array[writePos++] = (byte) (v >>> (i * 8));
+        }
+        return this;
+    }
+
+    public ByteBuf writeBytes(byte[] src, int offset, int length) {
+        writeVarInt(length);
+        ensure(length);
+        System.arraycopy(src, offset, array, writePos, length);
+        writePos += length;
+        return this;
+    }
+
+    /**
+     * Write a proposed value: an int length (-1 for null) and its bytes. A
+     * Payload is copied as is; anything else is encoded in place by codec.
+     */
+    public ByteBuf writePayload(Object value, ValueCodec codec) throws IOException {
+        if (value == null) {
+            return writeInt(-1);
+        }
+        if (value instanceof Payload) {
+            Payload payload = (Payload) value;
+            writeInt(payload.length);
+            ensure(payload.length);
+            System.arraycopy(payload.array, payload.offset, array, writePos, payload.length);
+            writePos += payload.length;
+            return this;
+        }
+        int start = writePos;
+        writeInt(0);
+        codec.write(value, this);
+        setInt(start, writePos - start - 4);
+        return this;
+    }
+
+    public ByteBuf writeString(String s) {
+        if (s == null) {
+            return writeVarInt(-1);
+        }
+        // ASCII fast path avoids the intermediate byte[] of getBytes()
+        int n = s.length();
+        boolean ascii = true;
+        for (int i = 0; i < n && ascii; i++) {
+            ascii = s.charAt(i) < 0x80;
+        }
+        if (!ascii) {
+            byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+            return writeBytes(utf8, 0, utf8.length);
+        }
+        writeVarInt(n);
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            array[writePos++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    // ---------- reading ----------
+
+    void need(int n) throws IOException {
+        if (writePos - readPos < n) {
+            throw new EOFException();
+        }
+    }
+
+    public int readByte() throws IOException {
+        need(1);
+        return array[readPos++];
+    }
+
+    public boolean readBoolean() throws IOException {
+        return readByte() != 0;
+    }
+
+    public int readVarInt() throws IOException {
+        return (int) readVarLong();
+    }
+
+    public long readVarLong() throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    public int readInt() throws IOException {
+        need(4);
+        int v = ((array[readPos] & 0xFF) << 24) | ((array[readPos + 1] & 0xFF) << 16)
+                | ((array[readPos + 2] & 0xFF) << 8) | (array[readPos + 3] & 0xFF);
+        readPos += 4;
+        return v;
+    }
+
+    public long readLong() throws IOException {
+        need(8);
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (array[readPos++] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * Read a value written by writePayload() as a Payload that shares this
+     * buffer's array, without decoding it.
+     */
+    public Payload readPayload() throws IOException {
+        int n = readInt();
+        if (n < 0) {
+            return null;
+        }
+        need(n);
+        Payload payload = new Payload(array, readPos, n);
+        readPos += n;
+        return payload;
+    }
+
+    public String readString() throws IOException {
+        int n = readVarInt();
+        if (n < 0) {
+            return null;
+        }
+        need(n);
+        String s = new String(array, readPos, n, StandardCharsets.UTF_8);
+        readPos += n;
+        return s;
+    }
+}
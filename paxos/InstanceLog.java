@@ -0,0 +1,192 @@
+package paxos;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The instances of one Paxos peer, kept in a ring indexed by sequence
+ * number. Sequence numbers are dense and only move forward, so every live
+ * instance lies in [low, low + capacity) and maps to slot seq mod capacity.
+ * Lookup and Max are O(1), and forgetting a prefix only touches the
+ * slots being cleared. The ring doubles when a seq falls past its end,
+ * up to MAX_CAPACITY slots. A seq further ahead than that, e.g. from a
+ * Start() or a peer's Prepare far in the future, is kept in a map instead
+ * and moves into the ring once truncate() brings it within reach.
+ * <p>
+ * getOrCreate() and truncate() synchronize on the log; get(), max() and
+ * size() never lock.
+ */
+public class InstanceLog {
+    static final int MAX_CAPACITY = 1 << 20;
+    volatile AtomicReferenceArray<Paxos.Instance> slots;
+    final ConcurrentHashMap<Integer, Paxos.Instance> far; // instances at or past low + MAX_CAPACITY
+    volatile int low; // instances below low have been forgotten
+    volatile int max; // highest seq ever stored, -1 if none
+    volatile int size; // number of live instances
+
+    public InstanceLog(int capacity) {
+        int n = Integer.highestOneBit(Math.min(Math.max(capacity, 2), MAX_CAPACITY) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(n);
+        this.far = new ConcurrentHashMap<>();
+        this.low = 0;
+        this.max = -1;
+        this.size = 0;
+    }
+
+    /**
+     * The instance for seq, or null if there is none.
+     */
+    public Paxos.Instance get(int seq) {
+        if (seq < low || seq > max) {
+            return null;
+        }
+        AtomicReferenceArray<Paxos.Instance> s = slots;
+        Paxos.Instance ins = s.get(seq & (s.length() - 1));
+        if (ins != null && ins.seq == seq) {
+            return ins;
+        }
+        return far.isEmpty() ? null : far.get(seq);
+    }
+
+    /**
+     * The instance for seq, created if needed, or null if seq has already
+     * been forgotten.
+     */
+    public Paxos.Instance getOrCreate(int seq) {
+        Paxos.Instance ins = get(seq);
+        if (ins != null) {
+            return ins;
+        }
+        return create(seq);
+    }
+
+    synchronized Paxos.Instance create(int seq) {
+        Paxos.Instance ins = get(seq);
+        if (ins != null || seq < low) {
+            return ins;
+        }
+        ins = new Paxos.Instance(seq, -1, -1, null);
+        if (seq - low >= MAX_CAPACITY) {
+            far.put(seq, ins);
+        } else {
+            if (seq - low >= slots.length()) {
+                grow(seq - low + 1);
+            }
+            AtomicReferenceArray<Paxos.Instance> s = slots;
+            s.set(seq & (s.length() - 1), ins);
+        }
+        size++;
+        if (seq > max) {
+            max = seq;
+        }
+        return ins;
+    }
+
+    /**
+     * Grow the ring to at least needed slots, which is at most
+     * MAX_CAPACITY.
+     */
+    void grow(int needed) {
+        AtomicReferenceArray<Paxos.Instance> old = slots;
+        int n = old.length();
+        if (n >= needed) {
+            return;
+        }
+        while (n < needed && n < MAX_CAPACITY) {
+            n <<= 1;
+        }
+        AtomicReferenceArray<Paxos.Instance> s = new AtomicReferenceArray<>(n);
+        for (int i = 0; i < old.length(); i++) {
+            Paxos.Instance ins = old.get(i);
+            if (ins != null) {
+                s.set(ins.seq & (n - 1), ins);
+            }
+        }
+        slots = s;
+    }
+
+    /**
+     * Forget every instance below seq.
+     */
+    public synchronized void truncate(int seq) {
+        if (seq <= low) {
+            return;
+        }
+        AtomicReferenceArray<Paxos.Instance> s = slots;
+        int end = (int) Math.min(seq, max + 1L);
+        int cleared = 0;
+        if (end - low >= s.length()) {
+            for (int i = 0; i < s.length(); i++) {
+                if (s.getAndSet(i, null) != null) {
+                    cleared++;
+                }
+            }
+        } else {
+            for (int seqIdx = low; seqIdx < end; seqIdx++) {
+                if (s.getAndSet(seqIdx & (s.length() - 1), null) != null) {
+                    cleared++;
+                }
+            }
+        }
+        low = seq;
+        if (!far.isEmpty()) {
+            cleared += settle();
+        }
+        size -= cleared;
+    }
+
+    /**
+     * Drop the far instances below low and move the ones now within
+     * MAX_CAPACITY of it into the ring. Returns how many were dropped.
+     */
+    int settle() {
+        int dropped = 0;
+        for (Paxos.Instance ins : far.values()) {
+            if (ins.seq < low) {
+                far.remove(ins.seq);
+                dropped++;
+            } else if (ins.seq - low < MAX_CAPACITY) {
+                grow(ins.seq - low + 1);
+                AtomicReferenceArray<Paxos.Instance> s = slots;
+                s.set(ins.seq & (s.length() - 1), ins);
+                far.remove(ins.seq);
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * The live instances, in no particular order.
+     */
+    public synchronized List<Paxos.Instance> live() {
+        ArrayList<Paxos.Instance> live = new ArrayList<>(size);
+        AtomicReferenceArray<Paxos.Instance> s = slots;
+        for (int i = 0; i < s.length(); i++) {
+            Paxos.Instance ins = s.get(i);
+            if (ins != null && ins.seq >= low) {
+                live.add(ins);
+            }
+        }
+        live.addAll(far.values());
+        return live;
+    }
+
+    /**
+     * Highest seq this peer has ever known of, -1 if none.
+     */
+    public int max() {
+        return max;
+    }
+
+    /**
+     * Lowest seq that has not been forgotten.
+     */
+    public int low() {
+        return low;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,12 @@
+package paxos;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * RMI for peers that fell behind. Fetch returns the decided values of a
+ * range of instances in one call. It is kept apart from PaxosRMI so that
+ * the agreement protocol itself stays unchanged.
+ */
+public interface LearnerRMI extends Remote {
+    Response Fetch(Request req) throws RemoteException;
+}
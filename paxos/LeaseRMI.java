@@ -0,0 +1,12 @@
+package paxos;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * RMI for linearizable reads. Heartbeat asks a peer for a read lease on
+ * behalf of the stable leader, or, without req.lease, only for the highest
+ * instance it accepted a value in. Like LearnerRMI it is kept apart from PaxosRMI.
+ */
+public interface LeaseRMI extends Remote {
+    Response Heartbeat(Request req) throws RemoteException;
+}
@@ -0,0 +1,37 @@
+package paxos;
+import java.io.IOException;
+
+/**
+ * Turns messages into bytes for a byte-stream transport. Codecs write into
+ * a caller-supplied ByteBuf, so a transport can reuse one buffer per
+ * thread instead of allocating a byte[] per message.
+ */
+public interface MessageCodec {
+
+    void encode(Object msg, ByteBuf out) throws IOException;
+
+    Object decode(ByteBuf in) throws IOException;
+
+    default byte[] encode(Object msg) throws IOException {
+        ByteBuf out = new ByteBuf(128);
+        encode(msg, out);
+        return out.toByteArray();
+    }
+
+    default Object decode(byte[] data, int offset, int length) throws IOException {
+        return decode(ByteBuf.wrap(data, offset, length));
+    }
+
+    /**
+     * Plain Java serialization; works for every Serializable message.
+     */
+    MessageCodec JAVA = new MessageCodec() {
+        public void encode(Object msg, ByteBuf out) throws IOException {
+            ValueCodec.JAVA.write(msg, out);
+        }
+
+        public Object decode(ByteBuf in) throws IOException {
+            return ValueCodec.JAVA.read(in);
+        }
+    };
+}
@@ -0,0 +1,329 @@
+package paxos;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, histograms and gauges of one component, e.g. one Paxos peer.
+ * Metrics are created up front and kept in fields by their owner, so
+ * recording is a few LongAdder updates and never allocates.
+ * <p>
+ * A registry can be exported as a JMX MBean whose attributes are the
+ * current values (a histogram shows up as name.count, name.sum, name.p50,
+ * name.p99, name.p999 and name.max), and served as plain text over HTTP
+ * in the Prometheus exposition format by serve().
+ * <p>
+ * A name may carry labels of its own, e.g. rpc_failures{to="2"}; the
+ * registry's labels are added to them in the text format.
+ */
+public class Metrics {
+    String prefix; // prepended to every name in the text format
+    String labels; // e.g. peer="0", added to every metric in the text format
+    ConcurrentSkipListMap<String, Object> metrics; // Counter, Histogram or LongSupplier by name
+    ObjectName exported; // null if not registered with JMX
+
+    /**
+     * Counts events; add() and increment() do not allocate.
+     */
+    public static class Counter {
+        final LongAdder adder = new LongAdder();
+
+        public void increment() {
+            adder.increment();
+        }
+
+        public void add(long n) {
+            adder.add(n);
+        }
+
+        public long get() {
+            return adder.sum();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values, usually nanoseconds, in buckets
+     * of powers of two: bucket b holds values of b significant bits. A
+     * percentile is reported as the upper bound of its bucket, so it is at
+     * most twice the true value.
+     */
+    public static class Histogram {
+        static final int BUCKETS = 64;
+        final LongAdder[] buckets;
+        final LongAdder sum;
+        final AtomicLong max;
+
+        Histogram() {
+            buckets = new LongAdder[BUCKETS];
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[b] = new LongAdder();
+            }
+            sum = new LongAdder();
+            max = new AtomicLong();
+        }
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+            long m = max.get();
+            while (value > m && !max.compareAndSet(m, value)) {
+                m = max.get();
+            }
+        }
+
+        /**
+         * Record the nanoseconds since start, a System.nanoTime().
+         */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public long count() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * The value below which a share p (0 to 1) of the recorded values
+         * lie, rounded up to a power of two minus one; 0 if none.
+         */
+        public long percentile(double p) {
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                counts[b] = buckets[b].sum();
+                count += counts[b];
+            }
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += counts[b];
+                if (seen >= rank && counts[b] > 0) {
+                    return b == 0 ? 0 : Math.min(max.get(), (1L << b) - 1);
+                }
+            }
+            return 0;
+        }
+    }
+
+    public Metrics(String prefix, String labels) {
+        this.prefix = prefix;
+        this.labels = labels;
+        this.metrics = new ConcurrentSkipListMap<>();
+    }
+
+    public Counter counter(String name) {
+        return (Counter) metrics.computeIfAbsent(name, n -> new Counter());
+    }
+
+    public Histogram histogram(String name) {
+        return (Histogram) metrics.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * A value read when the metrics are, e.g. the size of a queue.
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        metrics.put(name, gauge);
+    }
+
+    /**
+     * Every value by name, histograms flattened as for JMX.
+     */
+    public Map<String, Long> snapshot() {
+        TreeMap<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                values.put(name, ((Counter) metric).get());
+            } else if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                values.put(name + ".count", h.count());
+                values.put(name + ".sum", h.sum());
+                values.put(name + ".p50", h.percentile(0.5));
+                values.put(name + ".p99", h.percentile(0.99));
+                values.put(name + ".p999", h.percentile(0.999));
+                values.put(name + ".max", h.max());
+            } else {
+                values.put(name, ((LongSupplier) metric).getAsLong());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Write every metric in the Prometheus text format.
+     */
+    public void writeText(StringBuilder out) {
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            Object metric = entry.getValue();
+            if (metric instanceof Histogram) {
+                Histogram h = (Histogram) metric;
+                line(out, entry.getKey(), "quantile=\"0.5\"", "", h.percentile(0.5));
+                line(out, entry.getKey(), "quantile=\"0.99\"", "", h.percentile(0.99));
+                line(out, entry.getKey(), "quantile=\"0.999\"", "", h.percentile(0.999));
+                line(out, entry.getKey(), null, "_max", h.max());
+                line(out, entry.getKey(), null, "_sum", h.sum());
+                line(out, entry.getKey(), null, "_count", h.count());
+            } else if (metric instanceof Counter) {
+                line(out, entry.getKey(), null, "", ((Counter) metric).get());
+            } else {
+                line(out, entry.getKey(), null, "", ((LongSupplier) metric).getAsLong());
+            }
+        }
+    }
+
+    void line(StringBuilder out, String name, String extra, String suffix, long value) {
+        int brace = name.indexOf('{');
+        String base = brace < 0 ? name : name.substring(0, brace);
+        out.append(prefix).append('_').append(base).append(suffix).append('{').append(labels);
+        if (brace >= 0) {
+            out.append(',').append(name, brace + 1, name.length() - 1);
+        }
+        if (extra != null) {
+            out.append(',').append(extra);
+        }
+        out.append("} ").append(value).append('\n');
+    }
+
+    /**
+     * Register with the platform MBeanServer under objectName, e.g.
+     * paxos:type=Paxos,peer=0, replacing whatever was registered there.
+     */
+    public void export(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MBean(), name);
+            exported = name;
+        } catch (Exception e) {
+            throw new IllegalArgumentException("cannot export metrics as " + objectName, e);
+        }
+    }
+
+    /**
+     * Undo export(), if it was called.
+     */
+    public void unexport() {
+        ObjectName name = exported;
+        exported = null;
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            // already gone
+        }
+    }
+
+    /*
+    The JMX view of the registry: one read-only long attribute per value
+     */
+    class MBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("metrics are read-only");
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> values = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+            int i = 0;
+            for (String name : values.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), prefix + " metrics", attributes, null, null, null);
+        }
+    }
+
+    /**
+     * Serve the text format of registries at http://host:port/metrics.
+     * Stop the returned server to stop serving.
+     */
+    public static HttpServer serve(int port, Metrics... registries) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            StringBuilder text = new StringBuilder();
+            for (Metrics registry : registries) {
+                registry.writeText(text);
+            }
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
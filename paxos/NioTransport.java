@@ -0,0 +1,348 @@
+package paxos;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transport over plain socket channels. Every peer keeps one persistent
+ * connection to each other peer and multiplexes concurrent calls on it by
+ * request id. A frame on the wire is
+ * <pre>
+ *   int length | long requestId | byte kind | byte method | payload
+ * </pre>
+ * where length counts everything after itself, kind is REQUEST, RESPONSE
+ * or FAILURE, method is the index of the method name in methods[], and
+ * payload is the message encoded by the MessageCodec. Frames are encoded
+ * into a buffer kept per thread, so sending does not allocate.
+ * <p>
+ * Peer id listens on ports[id] + portOffset. ports[] is shared with the
+ * owner, so rewriting an entry (as the deaf-peer tests do) redirects the
+ * next call and drops the old connection.
+ */
+public class NioTransport implements Transport {
+    static final byte REQUEST = 0;
+    static final byte RESPONSE = 1;
+    static final byte FAILURE = 2;
+    static final int HEADER = 8 + 1 + 1;
+    static final int CONNECT_TIMEOUT_MS = 1000;
+    static final int MAX_FRAME = 64 << 20;
+    static final int MAX_CACHED_BUFFER = 1 << 20;
+    static final ThreadLocal<ByteBuf> FRAME_BUFFER = ThreadLocal.withInitial(() -> new ByteBuf(1024));
+
+    int me; // -1 for a client that only makes calls
+    String[] hosts;
+    int[] ports;
+    int portOffset;
+    String[] methods; // the wire code of a method is its index here
+    MessageCodec codec;
+    long timeoutMs;
+
+    Connection[] connections;
+    Object[] connectLocks;
+    AtomicLong nextRequestId;
+    ServerSocketChannel server;
+    Set<SocketChannel> accepted;
+    ExecutorService workers; // connection readers and request handlers
+    volatile boolean closed;
+
+    /*
+    An outgoing connection to one peer and the calls waiting on it
+     */
+    class Connection {
+        final SocketChannel channel;
+        final int port;
+        final ConcurrentHashMap<Long, CompletableFuture<Object>> pending;
+        volatile boolean open;
+
+        Connection(SocketChannel channel, int port) {
+            this.channel = channel;
+            this.port = port;
+            this.pending = new ConcurrentHashMap<>();
+            this.open = true;
+        }
+
+        void readLoop() {
+            try {
+                while (open) {
+                    ByteBuffer frame = readFrame(channel);
+                    long requestId = frame.getLong();
+                    byte kind = frame.get();
+                    frame.get(); // method
+                    CompletableFuture<Object> future = pending.remove(requestId);
+                    if (future == null) {
+                        continue; // the caller gave up on it
+                    }
+                    if (kind == RESPONSE) {
+                        future.complete(codec.decode(ByteBuf.wrap(frame.array(), frame.position(), frame.remaining())));
+                    } else {
+                        future.complete(null);
+                    }
+                }
+            } catch (IOException e) {
+                // peer went away; fall through and fail what is left
+            }
+            shut();
+        }
+
+        void shut() {
+            open = false;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+            for (CompletableFuture<Object> future : pending.values()) {
+                future.complete(null);
+            }
+            pending.clear();
+        }
+    }
+
+    public NioTransport(int me, String[] hosts, int[] ports, int portOffset, String[] methods, MessageCodec codec) {
+        this.me = me;
+        this.hosts = hosts;
+        this.ports = ports;
+        this.portOffset = portOffset;
+        this.methods = methods;
+        this.codec = codec;
+        this.timeoutMs = 2000;
+        this.connections = new Connection[ports.length];
+        this.connectLocks = new Object[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            connectLocks[i] = new Object();
+        }
+        this.nextRequestId = new AtomicLong();
+        this.accepted = ConcurrentHashMap.newKeySet();
+        this.workers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "nio-transport-" + me);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Object call(int id, String method, Object req) {
+        if (closed) {
+            return null;
+        }
+        Connection conn = connect(id);
+        if (conn == null) {
+            return null;
+        }
+        long requestId = nextRequestId.incrementAndGet();
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        conn.pending.put(requestId, future);
+        try {
+            writeFrame(conn.channel, requestId, REQUEST, code(method), req);
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (Exception e) {
+            conn.shut();
+            return null;
+        } finally {
+            conn.pending.remove(requestId);
+        }
+    }
+
+    /**
+     * The open connection to peer id, dialing it if needed; null if the
+     * peer cannot be reached.
+     */
+    Connection connect(int id) {
+        synchronized (connectLocks[id]) {
+            int port = ports[id];
+            Connection conn = connections[id];
+            if (conn != null && conn.open && conn.port == port) {
+                return conn;
+            }
+            if (conn != null) {
+                conn.shut();
+                connections[id] = null;
+            }
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.socket().connect(new InetSocketAddress(hosts[id], port + portOffset), CONNECT_TIMEOUT_MS);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (Exception e) {
+                try {
+                    if (channel != null) {
+                        channel.close();
+                    }
+                } catch (IOException ignored) {
+                    // already failed
+                }
+                return null;
+            }
+            conn = new Connection(channel, port);
+            connections[id] = conn;
+            workers.execute(conn::readLoop);
+            return conn;
+        }
+    }
+
+    @Override
+    public void serve(Handler handler) {
+        try {
+            server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(ports[me] + portOffset));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        Thread acceptor = new Thread(() -> {
+            while (!closed) {
+                try {
+                    SocketChannel channel = server.accept();
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    accepted.add(channel);
+                    workers.execute(() -> serveConnection(channel, handler));
+                } catch (IOException e) {
+                    if (!closed) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+            }
+        }, "nio-accept-" + me);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Read requests off an incoming connection and answer each of them
+     * from a worker, so slow calls do not hold up the ones behind them.
+     */
+    void serveConnection(SocketChannel channel, Handler handler) {
+        try {
+            while (!closed) {
+                ByteBuffer frame = readFrame(channel);
+                long requestId = frame.getLong();
+                frame.get(); // kind
+                byte method = frame.get();
+                workers.execute(() -> {
+                    try {
+                        Object req = codec.decode(ByteBuf.wrap(frame.array(), frame.position(), frame.remaining()));
+                        Object resp = handler.handle(methods[method], req);
+                        writeFrame(channel, requestId, RESPONSE, method, resp);
+                    } catch (IOException e) {
+                        // the caller hung up
+                    } catch (Exception e) {
+                        try {
+                            writeFrame(channel, requestId, FAILURE, method, null);
+                        } catch (IOException ignored) {
+                            // the caller hung up
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // caller hung up
+        } finally {
+            accepted.remove(channel);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    byte code(String method) {
+        for (int i = 0; i < methods.length; i++) {
+            if (methods[i].equals(method)) {
+                return (byte) i;
+            }
+        }
+        throw new IllegalArgumentException("unknown method " + method);
+    }
+
+    static ByteBuffer readFrame(SocketChannel channel) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length);
+        int n = length.getInt(0);
+        if (n < HEADER || n > MAX_FRAME) {
+            throw new IOException("bad frame length " + n);
+        }
+        ByteBuffer frame = ByteBuffer.allocate(n);
+        readFully(channel, frame);
+        frame.flip();
+        return frame;
+    }
+
+    static void readFully(SocketChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Encode msg straight into this thread's frame buffer behind the header
+     * and write the frame out. A FAILURE frame has no payload.
+     */
+    void writeFrame(SocketChannel channel, long requestId, byte kind, byte method, Object msg) throws IOException {
+        ByteBuf out = FRAME_BUFFER.get();
+        out.clear();
+        out.writeInt(0).writeLong(requestId).writeByte(kind).writeByte(method);
+        if (kind != FAILURE) {
+            codec.encode(msg, out);
+        }
+        out.setInt(0, out.writerIndex() - 4);
+        ByteBuffer buf = ByteBuffer.wrap(out.array(), 0, out.writerIndex());
+        synchronized (channel) {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+        if (out.array().length > MAX_CACHED_BUFFER) {
+            FRAME_BUFFER.remove(); // don't pin the memory of one huge message
+        }
+    }
+
+    public void setTimeout(long timeoutMs) {
+        this.timeoutMs = timeoutMs;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException e) {
+            // already closed
+        }
+        for (int i = 0; i < connections.length; i++) {
+            synchronized (connectLocks[i]) {
+                if (connections[i] != null) {
+                    connections[i].shut();
+                    connections[i] = null;
+                }
+            }
+        }
+        for (SocketChannel channel : accepted) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+        workers.shutdownNow();
+    }
+}
@@ -1,18 +1,25 @@
 package paxos;
+import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.server.UnicastRemoteObject;
 import java.rmi.registry.Registry;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class is the main class you need to implement paxos instances.
  */
-public class Paxos implements PaxosRMI, Runnable{
+public class Paxos implements PaxosRMI, LearnerRMI, LeaseRMI{
 
     ReentrantLock mutex;
     String[] peers; // hostname
@@ -21,22 +28,35 @@ public class Paxos implements PaxosRMI, Runnable{
 
     Registry registry;
     PaxosRMI stub;
+    RmiTransport<PaxosRMI> rmi; // the default transport, null if the peer was built on another one
+    volatile Transport transport; // carries Prepare/Accept/Decide to the other peers
+    volatile ValueCodec valueCodec; // decodes values that arrived as a Payload
+    AcceptorLog wal; // acceptor write-ahead log, null if the peer keeps its state in memory only
+    ReentrantLock ballotMutex; // guards ballotReserve and ballotLogged
+    int ballotReserve; // proposal numbers up to this one are recorded in the wal
+    long ballotLogged; // wal position of the BALLOT record for ballotReserve
+    int ballotFloor; // ballotReserve recovered at startup; proposers start above it
+    static final int BALLOT_RESERVE_ROUNDS = 1024; // rounds reserved per BALLOT record
 
     AtomicBoolean dead;// for testing
     AtomicBoolean unreliable;// for testing
+    static final double UNRELIABLE_DROP_REQUEST = 0.1; // share of calls lost on the way out when unreliable
+    static final double UNRELIABLE_DROP_REPLY = 0.2; // share of replies lost on the way back
 
     // Your data here
     /*
     This class contains the Proposal Instance information
     One seq number is corresponding to one agreement instance
      */
-    public class Instance {
+    public static class Instance {
+        final int seq;
         int minProposal;
         int highestAcceptedProposal;
         Object value;
-        State state; // status of the current proposal
+        volatile State state; // status of the current proposal, written after value
 
-        public Instance(int minProposal,int highestAcceptedProposal, Object value) {
+        public Instance(int seq, int minProposal,int highestAcceptedProposal, Object value) {
+            this.seq = seq;
             this.minProposal = minProposal;  // the highest prepare seen
             this.highestAcceptedProposal=highestAcceptedProposal;
             this.value = value;
@@ -44,25 +64,119 @@ public class Paxos implements PaxosRMI, Runnable{
         }
     }
 
-    public class proposerParameter{
-        int seqId;
+    /*
+    The proposer task of one instance, retired once the instance is decided
+     */
+    class Proposer implements Runnable {
+        int seq;
         Object value;
+        TraceContext trace; // null if the instance is not traced
+
+        Proposer(int seq, Object value, TraceContext trace) {
+            this.seq = seq;
+            this.value = value;
+            this.trace = trace;
+        }
+
+        @Override
+        public void run() {
+            Span span = Tracer.child(TRACE_SERVICE, "propose", trace);
+            Tracer.set(span, "seq", seq);
+            try {
+                propose(seq, value, Tracer.context(span));
+            } finally {
+                Tracer.end(span);
+                proposers.remove(seq, this);
+            }
+        }
+    }
+
+    /*
+    One reply from a peer in a broadcast
+     */
+    class Reply {
+        int id;
+        Response response;
 
-        public proposerParameter(int seqId,Object value){
-            this.seqId=seqId;
-            this.value=value;
+        Reply(int id, Response response) {
+            this.id = id;
+            this.response = response;
         }
     }
 
-    Map<Integer, Instance> instanceMap; // agreements
-    HashMap<Long,proposerParameter> threadId2ProposerParameter;//key is thread name, value is proposer parameter, including seq id and value
+    static final long PHASE_TIMEOUT_MS = 2000; // give up waiting for stragglers in one phase
+    static final long BACKOFF_MS = 5; // a failed round waits a random time below BACKOFF_MS << retries
+    static final long MAX_BACKOFF_MS = 200;
+    static final String TRACE_SERVICE = "paxos";
+    Metrics metrics; // see getMetrics()
+    Metrics.Histogram prepareNanos; // one broadcast of a phase, until a majority or every peer answered
+    Metrics.Histogram acceptNanos;
+    Metrics.Histogram decideNanos;
+    Metrics.Counter retries; // proposer rounds after the first on an instance
+    Metrics.Counter preemptions; // phases in which an acceptor had promised a higher proposal
+    Metrics.Counter[] rpcFailures; // calls per peer that got no reply
+    ExecutorService rpcPool; // sends the RMIs of a broadcast in parallel
+
+    InstanceLog instanceLog; // agreements
+    ConcurrentHashMap<Integer, Proposer> proposers; // running proposers by seq
+    ConcurrentHashMap<Integer, CompletableFuture<Object>> decisions; // futures handed out by Decision()
+    ProposerScheduler scheduler;
     int peersNum; // number of peers
     int majority; // number of majority
 
-    //these variables are replaced by threadname2ProposerParameter
+    //these variables are replaced by the Proposer task
 //    int curSeq; // current sequence
 //    Object curVal;
-    int[] highestDoneSeq; // record the highest number ever passed to Done() on all peers
+    AtomicIntegerArray highestDoneSeq; // record the highest number ever passed to Done() on all peers
+    AtomicInteger minDone; // Min() - 1: minimum of highestDoneSeq, or a higher bound a peer told us
+    AtomicInteger clusterMax; // highest instance any peer has told us about
+    AtomicInteger clusterAccepted; // highest acceptedSeq any peer has told us about
+    AtomicInteger highestAccepted; // highest instance this peer accepted a value in or learned, -1 if none
+    static final int FETCH_BATCH = 256; // instances asked for per Fetch
+    static final long COMPACT_INTERVAL_MS = 20;
+    static final long SHUTDOWN_WAIT_MS = 1000; // Kill() waits this long for a checkpoint in progress
+    ScheduledExecutorService compactor; // forgets instances below Min() in the background
+
+    /*
+    Multi-Paxos stable-leader mode. The leader runs one Prepare over every
+    instance >= leaderFrom and then only sends Accept for new instances,
+    piggybacking the commit of the instance it decided before.
+     */
+    volatile int leader; // id of the distinguished leader, -1 if stable-leader mode is off
+    ReentrantLock leaderMutex; // serializes range Prepare among local proposer threads
+    int leaderProposal; // proposal number prepared over [leaderFrom, +inf)
+    int leaderFrom; // Integer.MAX_VALUE when the leader holds no range promise
+    int leaderHighestSeen; // highest proposal number the leader has seen
+    int commitSeq; // last instance decided by the leader, piggybacked on Accepts and lease Heartbeats
+    Object commitValue;
+    ReentrantLock rangeMutex; // serializes range Prepares on the acceptor
+    volatile int rangeProposal; // acceptor: promised for every seq >= rangeFrom
+    volatile int rangeFrom;
+
+    /*
+    Read leases. The stable leader asks every peer for a lease of LEASE_MS
+    with a Heartbeat every LEASE_RENEW_MS. An acceptor reports the holder of
+    the lease it granted in every reply, and a proposer only counts an
+    Accept round that the holder acked too, so nothing is decided behind
+    the holder's back while it serves reads locally.
+     */
+    static class Lease {
+        final int holder;
+        final long expiry; // System.nanoTime() at which the grant ends
+
+        Lease(int holder, long expiry) {
+            this.holder = holder;
+            this.expiry = expiry;
+        }
+    }
+    ReentrantLock leaseMutex; // serializes grants
+    volatile Lease lease; // acceptor: the last lease granted, null if none
+    volatile long leaseUntil; // leader: its lease is valid before this System.nanoTime()
+    ScheduledExecutorService leaseTimer; // renews the lease while this peer is the leader
+    static final long LEASE_MS = 1000;
+    static final long LEASE_RENEW_MS = 250;
+    static final double MAX_CLOCK_DRIFT = 0.05; // bound on how much faster one peer's clock may run than another's
+    public static final int NO_QUORUM = Integer.MIN_VALUE; // ReadIndex() could not reach a majority
 
     /**
      * Call the constructor to create a Paxos peer.
@@ -70,6 +184,28 @@ public class Paxos implements PaxosRMI, Runnable{
      * are in peers[]. The ports are in ports[].
      */
     public Paxos(int me, String[] peers, int[] ports){
+        this(me, peers, ports, null);
+    }
+
+    /**
+     * Create a Paxos peer whose acceptor state is written ahead to wal and
+     * replayed from it before the peer starts serving, so it can be
+     * restarted with the same wal after a crash.
+     */
+    public Paxos(int me, String[] peers, int[] ports, AcceptorLog wal){
+        this(me, peers, ports, wal, null);
+    }
+
+    /**
+     * Create peer me of a group of peersNum that talks to the others only
+     * over transport, e.g. an endpoint of a SimNetwork. Nothing is
+     * registered with RMI.
+     */
+    public Paxos(int me, int peersNum, Transport transport){
+        this(me, new String[peersNum], new int[peersNum], null, transport);
+    }
+
+    Paxos(int me, String[] peers, int[] ports, AcceptorLog wal, Transport transport){
 
         this.me = me;
         this.peers = peers;
@@ -77,14 +213,82 @@ public class Paxos implements PaxosRMI, Runnable{
         this.mutex = new ReentrantLock();
         this.dead = new AtomicBoolean(false);
         this.unreliable = new AtomicBoolean(false);
+        if (transport == null) {
+            this.rmi = new RmiTransport<>("Paxos", ports, Paxos::invoke);
+            transport = this.rmi;
+        }
+        this.transport = transport;
+        this.valueCodec = ValueCodec.JAVA;
 
         // Your initialization code here
         peersNum = peers.length;
         majority = peersNum / 2 + 1;
-        instanceMap = new HashMap<>();
-        threadId2ProposerParameter=new HashMap<Long,proposerParameter>();
-        highestDoneSeq = new int[peersNum];
-        Arrays.fill(highestDoneSeq, -1);
+        metrics = new Metrics("paxos", "peer=\"" + me + "\"");
+        prepareNanos = metrics.histogram("prepare_nanos");
+        acceptNanos = metrics.histogram("accept_nanos");
+        decideNanos = metrics.histogram("decide_nanos");
+        retries = metrics.counter("proposal_retries");
+        preemptions = metrics.counter("preemptions");
+        rpcFailures = new Metrics.Counter[peersNum];
+        for (int i = 0; i < peersNum; i++) {
+            rpcFailures[i] = metrics.counter("rpc_failures{to=\"" + i + "\"}");
+        }
+        metrics.gauge("instances", () -> instanceLog.size());
+        metrics.gauge("min", this::Min);
+        metrics.gauge("max", this::Max);
+        metrics.gauge("watermark_gap", () -> Max() - Min());
+        instanceLog = new InstanceLog(1024);
+        proposers = new ConcurrentHashMap<>();
+        decisions = new ConcurrentHashMap<>();
+        scheduler = ProposerScheduler.virtualThreads();
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "paxos-compactor-" + me);
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, COMPACT_INTERVAL_MS, COMPACT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        highestDoneSeq = new AtomicIntegerArray(peersNum);
+        for (int i = 0; i < peersNum; i++) {
+            highestDoneSeq.set(i, -1);
+        }
+        minDone = new AtomicInteger(-1);
+        clusterMax = new AtomicInteger(-1);
+        clusterAccepted = new AtomicInteger(-1);
+        highestAccepted = new AtomicInteger(-1);
+        leader = -1;
+        leaderMutex = new ReentrantLock();
+        leaderProposal = -1;
+        leaderFrom = Integer.MAX_VALUE;
+        leaderHighestSeen = 0;
+        commitSeq = -1;
+        rangeMutex = new ReentrantLock();
+        rangeProposal = -1;
+        rangeFrom = Integer.MAX_VALUE;
+        leaseMutex = new ReentrantLock();
+        lease = null;
+        leaseUntil = System.nanoTime();
+        leaseTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "paxos-lease-" + me);
+            thread.setDaemon(true);
+            return thread;
+        });
+        leaseTimer.scheduleWithFixedDelay(this::renewLease, LEASE_RENEW_MS, LEASE_RENEW_MS, TimeUnit.MILLISECONDS);
+        rpcPool = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "paxos-rpc-" + me);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.wal = wal;
+        this.ballotMutex = new ReentrantLock();
+        this.ballotReserve = -1;
+        this.ballotFloor = 0;
+        if (wal != null) {
+            recover();
+        }
+        if (this.rmi == null) {
+            transport.serve(this::dispatch);
+            return;
+        }
 
         // register peers, do not modify this part
         try {
@@ -108,98 +312,267 @@ public class Paxos implements PaxosRMI, Runnable{
      * You should assume that Call() will time out and return
      * null after a while if it doesn't get a reply from the server.
      * <p>
-     * Please use Call() to send all RMIs and please don't change
-     * this function.
+     * Please use Call() to send all RMIs. It goes through the current
+     * Transport, RMI unless setTransport() was called.
      */
     public Response Call(String rmi, Request req, int id) {
-        Response callReply = null;
+        Response response;
+        if (unreliable.get()) {
+            // lose some requests, and some replies after the peer acted on them
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            response = random.nextDouble() < UNRELIABLE_DROP_REQUEST ? null : (Response) transport.call(id, rmi, req);
+            if (random.nextDouble() < UNRELIABLE_DROP_REPLY) {
+                response = null;
+            }
+        } else {
+            response = (Response) transport.call(id, rmi, req);
+        }
+        if (response == null) {
+            rpcFailures[id].increment();
+        }
+        return response;
+    }
+
+    static Object invoke(PaxosRMI stub, String rmi, Object req) throws RemoteException {
+        if (rmi.equals("Prepare"))
+            return stub.Prepare((Request) req);
+        else if (rmi.equals("Accept"))
+            return stub.Accept((Request) req);
+        else if (rmi.equals("Decide"))
+            return stub.Decide((Request) req);
+        else if (rmi.equals("Fetch"))
+            // the exported stub implements every remote interface of Paxos
+            return ((LearnerRMI) stub).Fetch((Request) req);
+        else if (rmi.equals("Heartbeat"))
+            return ((LeaseRMI) stub).Heartbeat((Request) req);
+        System.out.println("Wrong parameters!");
+        return null;
+    }
+
+    /**
+     * Handle a call that arrived over the transport on this peer.
+     */
+    Response dispatch(String rmi, Object req) {
+        if (rmi.equals("Prepare"))
+            return Prepare((Request) req);
+        else if (rmi.equals("Accept"))
+            return Accept((Request) req);
+        else if (rmi.equals("Decide"))
+            return Decide((Request) req);
+        else if (rmi.equals("Fetch"))
+            return Fetch((Request) req);
+        else if (rmi.equals("Heartbeat"))
+            return Heartbeat((Request) req);
+        throw new IllegalArgumentException("Wrong parameters! " + rmi);
+    }
+
+    /**
+     * Switch peer traffic to another transport, e.g. a NioTransport built
+     * with PAXOS_METHODS. All peers must use the same kind of transport.
+     * The RMI registration made by the constructor stays in place.
+     */
+    public void setTransport(Transport transport) {
+        Transport old = this.transport;
+        transport.serve(this::dispatch);
+        this.transport = transport;
+        old.close();
+    }
 
-        PaxosRMI stub;
+    /**
+     * The codec that values of a binary transport were encoded with; Status()
+     * and Decision() use it to decode a Payload on the application's behalf.
+     */
+    public void setValueCodec(ValueCodec valueCodec) {
+        this.valueCodec = valueCodec;
+    }
+
+    /**
+     * The decided value of curIns as the application sees it. A Payload is
+     * decoded once and the result kept in place of the bytes.
+     */
+    Object open(Instance curIns, Object value) {
+        if (!(value instanceof Payload)) {
+            return value;
+        }
+        Object decoded;
         try {
-            Registry registry = LocateRegistry.getRegistry(this.ports[id]);
-            stub = (PaxosRMI) registry.lookup("Paxos");
-            if (rmi.equals("Prepare"))
-                callReply = stub.Prepare(req);
-            else if (rmi.equals("Accept"))
-                callReply = stub.Accept(req);
-            else if (rmi.equals("Decide"))
-                callReply = stub.Decide(req);
-            else
-                System.out.println("Wrong parameters!");
-        } catch (Exception e) {
-            return null;
+            decoded = ((Payload) value).decode(valueCodec);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        synchronized (curIns) {
+            if (curIns.value == value) {
+                curIns.value = decoded;
+            }
         }
-        return callReply;
+        return decoded;
     }
 
+    /**
+     * Method names of the Paxos protocol, for transports that send a code
+     * instead of the name.
+     */
+    public static final String[] PAXOS_METHODS = {"Prepare", "Accept", "Decide", "Fetch", "Heartbeat"};
+
+
+    /**
+     * Send rmi to every peer at once and return as soon as a majority has
+     * acked, every peer has answered, or PHASE_TIMEOUT_MS has passed.
+     * responses[id] is null for a peer that failed or had not answered yet;
+     * late replies are dropped. An Accept round also waits for the answer
+     * of a lease holder that some acceptor reported.
+     */
+    Response[] broadcast(String rmi, Request req) {
+        long start = System.nanoTime();
+        Span span = Tracer.child(TRACE_SERVICE, rmi, req.trace);
+        if (span != null) {
+            span.set("seq", req.seq).set("proposal", req.proposalNumber);
+            req.trace = span.context();
+        }
+        Response[] responses = gather(rmi, req);
+        Metrics.Histogram phase = rmi.equals("Prepare") ? prepareNanos : rmi.equals("Accept") ? acceptNanos
+                : rmi.equals("Decide") ? decideNanos : null;
+        if (phase != null) {
+            phase.recordSince(start);
+        }
+        if (span != null) {
+            int acks = 0;
+            for (Response response : responses) {
+                if (response != null && response.ack) {
+                    acks++;
+                }
+            }
+            span.set("acks", acks).end();
+        }
+        return responses;
+    }
+
+    /**
+     * The sending and waiting of broadcast().
+     */
+    Response[] gather(String rmi, Request req) {
+        req.minDone = minDone.get();
+        Response[] responses = new Response[peersNum];
+        LinkedBlockingQueue<Reply> replies = new LinkedBlockingQueue<>();
+        for (int id = 0; id < peersNum; id++) {
+            if (id == me) {
+                continue;
+            }
+            final int peer = id;
+            rpcPool.execute(() -> replies.add(new Reply(peer, Call(rmi, req, peer))));
+        }
+        // local peer: no need to send rmi call
+        responses[me] = dispatch(rmi, req);
+        int ackCount = responses[me] != null && responses[me].ack ? 1 : 0;
+        boolean accept = rmi.equals("Accept");
+        int holder = accept && responses[me] != null ? responses[me].leaseHolder : -1;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PHASE_TIMEOUT_MS);
+        // stop once a majority acked, or once the peers still out cannot make one
+        for (int pending = peersNum - 1; pending > 0 && ackCount + pending >= majority && (ackCount < majority || (holder >= 0 && holder != me && responses[holder] == null)); pending--) {
+            Reply reply;
+            try {
+                reply = replies.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (reply == null) {
+                break;
+            }
+            responses[reply.id] = reply.response;
+            if (reply.response != null) {
+                clusterMax.accumulateAndGet(reply.response.maxSeq, Math::max);
+                clusterAccepted.accumulateAndGet(reply.response.acceptedSeq, Math::max);
+                noteDone(reply.id, reply.response.highestDone);
+                if (accept && reply.response.leaseHolder >= 0) {
+                    holder = reply.response.leaseHolder;
+                }
+                if (reply.response.ack) {
+                    ackCount++;
+                }
+            }
+        }
+        return responses;
+    }
 
     /**
      * The application wants Paxos to start agreement on instance seq,
-     * with proposed value v. Start() should start a new thread to run
-     * Paxos on instance seq. Multiple instances can be run concurrently.
-     * <p>
-     * Hint: You may start a thread using the runnable interface of
-     * Paxos object. One Paxos object may have multiple instances, each
-     * instance corresponds to one proposed value/command. Java does not
-     * support passing arguments to a thread, so you may reset seq and v
-     * in Paxos object before starting a new thread. There is one issue
-     * that variable may change before the new thread actually reads it.
-     * Test won't fail in this case.
+     * with proposed value v. Start() hands a proposer task for instance
+     * seq to the ProposerScheduler. Multiple instances can be run
+     * concurrently. If this peer already has a proposer running on seq,
+     * Start() leaves it alone; that proposer keeps going until seq is
+     * decided.
      * <p>
-     * Start() just starts a new thread to initialize the agreement.
+     * Start() just starts the agreement.
      * The application will call Status() to find out if/when agreement
      * is reached.
      */
     public void Start(int seq, Object value) {
         // Your code here
+        Start(seq, value, null);
+    }
 
-        // start a new thread
-        Thread thread = new Thread(this,Integer.toString(seq));
-        mutex.lock();
+    /**
+     * Start() as part of a traced request: the proposer's phases, and the
+     * acceptors' handling of them, are recorded as spans under trace.
+     */
+    public void Start(int seq, Object value, TraceContext trace) {
+        Proposer proposer = new Proposer(seq, value, trace);
+        if (proposers.putIfAbsent(seq, proposer) != null) {
+            return;
+        }
         try {
-            // reset req and v in Paxos object, and pass it to the new Thread
-            this.threadId2ProposerParameter.put(thread.getId(),new proposerParameter(seq,value));
-        } finally {
-            mutex.unlock();
+            scheduler.submit(proposer);
+        } catch (RuntimeException e) {
+            proposers.remove(seq, proposer);
+            throw e;
         }
-        thread.start();
     }
 
     /**
-     * In this run function, server lead the phase 1 (prepare) and
+     * Replace the scheduler that runs proposer tasks, e.g. with
+     * ProposerScheduler.bounded() to cap concurrent instances.
+     */
+    public void setProposerScheduler(ProposerScheduler scheduler) {
+        ProposerScheduler old = this.scheduler;
+        this.scheduler = scheduler;
+        old.shutdown();
+    }
+
+    /**
+     * In this propose function, server lead the phase 1 (prepare) and
      * phase 2 (accept) of the algorithm as a proposer. The server send prepare
      * and accept request to the acceptors.
      */
-    @Override
-    public void run() {
+    void propose(int curSeq, Object curVal, TraceContext trace) {
         //Your code here
         int proposalNum = 0;
         // increase in the loop
-        int highestNumSeen = 0;
-        System.out.println("Start a new Paxos Thread");
-        proposerParameter proposerParameter=this.threadId2ProposerParameter.get(Thread.currentThread().getId());
-        int curSeq=proposerParameter.seqId;
-        Object curVal=proposerParameter.value;
+        int highestNumSeen = ballotFloor; // numbers below it may have been used before a restart
+        int failed = 0;
         while (!this.isDead()&&Status(curSeq).state != State.Decided) {
             if (curSeq < Min()) {
                 return;
             }
+            if (failed > 0) {
+                retries.increment();
+                backoff(failed);
+            }
+            failed++;
+            // stable leader: skip phase 1 and go straight to Accept
+            if (this.leader == me && leaderAccept(curSeq, curVal, trace)) {
+                continue;
+            }
             /* ------------------ phase 1: Prepare ------------------ */
             // choose a unique and higher proposal number
             proposalNum = ((highestNumSeen + 1 + this.peersNum)/this.peersNum)*this.peersNum + me;
             highestNumSeen = proposalNum;
+            reserveBallot(proposalNum);
             // sent prepare(n) to all servers and get the Response
-            Response[] responses = new Response[peersNum];
-
-            Request newReq = new Request(curSeq, proposalNum, null, me, highestDoneSeq[me]);
-            for (int id = 0; id < this.peersNum; id++) {
-                // local peer: no need to send rmi call
-                if (id == me) {
-                    responses[id] = Prepare(newReq);
-                } else {
-                    responses[id] = Call("Prepare", newReq, id);
-                }
-            }
+            Request newReq = new Request(curSeq, proposalNum, null, me, highestDoneSeq.get(me));
+            newReq.trace = trace;
+            Response[] responses = broadcast("Prepare", newReq);
+            notePreemption(responses, proposalNum);
             int ackCount = 0;
             int highestNumAccepted = Integer.MIN_VALUE;
             int highestId = -1;
@@ -227,14 +600,10 @@ public class Paxos implements PaxosRMI, Runnable{
                     sentValue = responses[highestId].valueAccepted;
                 }
                 /* ------------------ phase 2: Accept ------------------ */
-                newReq = new Request(curSeq, proposalNum, sentValue, me, highestDoneSeq[me]);
-                for (int id = 0; id < peersNum; id++) {
-                    if (id == me) {
-                        responses[id] = Accept(newReq);
-                    } else {
-                        responses[id] = Call("Accept", newReq, id);
-                    }
-                }
+                newReq = new Request(curSeq, proposalNum, sentValue, me, highestDoneSeq.get(me));
+                newReq.trace = trace;
+                responses = broadcast("Accept", newReq);
+                notePreemption(responses, proposalNum);
             }
             // /* ------------------ phase 3:  ------------------ */
             ackCount = 0;
@@ -248,7 +617,7 @@ public class Paxos implements PaxosRMI, Runnable{
                 }
             }
             boolean continueFlag = false;
-            if (ackCount < majority) {
+            if (ackCount < majority || leaseBlocks(responses)) {
                 continue;
             } else {
                 for (Response response : responses) {
@@ -264,17 +633,277 @@ public class Paxos implements PaxosRMI, Runnable{
                 if (continueFlag) {
                     continue;
                 }
-                newReq = new Request(curSeq, proposalNum, sentValue, me, highestDoneSeq[me]);
-                for (int id = 0; id < peersNum; id++) {
-                    if (id == me) {
-                        responses[id] = Decide(newReq);
+                newReq = new Request(curSeq, proposalNum, sentValue, me, highestDoneSeq.get(me));
+                newReq.trace = trace;
+                broadcast("Decide", newReq);
+            }
+        }
+
+    }
+
+    /**
+     * Sleep a random time below BACKOFF_MS << (failed - 1), capped at
+     * MAX_BACKOFF_MS, so that dueling proposers stop preempting each other
+     * in lockstep.
+     */
+    void backoff(int failed) {
+        long bound = Math.min(MAX_BACKOFF_MS, BACKOFF_MS << Math.min(failed - 1, 16));
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(bound + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Count a phase in which some acceptor had promised a proposal higher
+     * than proposalNum, i.e. another proposer got in the way.
+     */
+    void notePreemption(Response[] responses, int proposalNum) {
+        for (Response response : responses) {
+            if (response != null && !response.ack && response.proposalNumber > proposalNum) {
+                preemptions.increment();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Enable Multi-Paxos stable-leader mode. Every peer should be told the
+     * same leader. Only the leader skips phase 1; all other peers, and the
+     * leader itself once it loses its range promise, use the per-instance
+     * Prepare path. Pass -1 to turn the mode off.
+     */
+    public void setLeader(int leader) {
+        leaderMutex.lock();
+        try {
+            this.leader = leader;
+            this.leaderProposal = -1;
+            this.leaderFrom = Integer.MAX_VALUE;
+            this.leaseUntil = System.nanoTime();
+        } finally {
+            leaderMutex.unlock();
+        }
+    }
+
+    /**
+     * Whether an acceptor reported a lease held by another peer that did
+     * not ack this Accept round. Such a round must not decide anything.
+     */
+    boolean leaseBlocks(Response[] responses) {
+        for (Response response : responses) {
+            if (response == null || response.leaseHolder < 0 || response.leaseHolder == me) {
+                continue;
+            }
+            Response holder = responses[response.leaseHolder];
+            if (holder == null || !holder.ack) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs every LEASE_RENEW_MS on the lease timer. The leader asks every
+     * peer for a lease; once a majority granted it, the lease is valid for
+     * LEASE_MS, shortened by MAX_CLOCK_DRIFT, counted from before the
+     * request was sent, so it ends before any grant does. The replies also
+     * raise ClusterAccepted() past every instance that was accepted without
+     * the leader's ack before the grants.
+     * <p>
+     * The request carries the leader's last commit, like an Accept does, so
+     * that followers learn the last instance of a burst while the leader
+     * is idle instead of waiting for the next Accept.
+     */
+    void renewLease() {
+        if (leader != me || isDead()) {
+            return;
+        }
+        long start = System.nanoTime();
+        Request req = new Request(0, 0, null, me, highestDoneSeq.get(me));
+        req.lease = true;
+        mutex.lock();
+        try {
+            req.commitSeq = commitSeq;
+            req.commitValue = commitValue;
+        } finally {
+            mutex.unlock();
+        }
+        int ackCount = 0;
+        for (Response response : broadcast("Heartbeat", req)) {
+            if (response != null && response.ack) {
+                ackCount++;
+            }
+        }
+        if (ackCount >= majority && leader == me) {
+            leaseUntil = start + (long) (TimeUnit.MILLISECONDS.toNanos(LEASE_MS) * (1 - MAX_CLOCK_DRIFT));
+        }
+    }
+
+    /**
+     * Whether this peer is the leader and holds a read lease right now.
+     * While it does, every instance decided so far is at most
+     * ClusterAccepted(), so once the application has applied that far it
+     * can serve a read from its own state.
+     */
+    public boolean HasLease() {
+        return leader == me && System.nanoTime() - leaseUntil < 0;
+    }
+
+    /**
+     * ReadIndex: one Heartbeat round that returns the highest instance a
+     * majority of peers has accepted a value in. An instance decided
+     * before the call was accepted by a majority, which shares a peer with
+     * the one that answered, so it is at most that; and instances that only
+     * saw a Prepare do not count, so the application does not wait for
+     * instances that may never be decided. Once it has applied that far it
+     * can serve a read from its own state. Returns NO_QUORUM if a majority
+     * did not answer.
+     */
+    public int ReadIndex() {
+        Request req = new Request(0, 0, null, me, highestDoneSeq.get(me));
+        int ackCount = 0;
+        int index = -1;
+        for (Response response : broadcast("Heartbeat", req)) {
+            if (response != null && response.ack) {
+                ackCount++;
+                index = Math.max(index, response.acceptedSeq);
+            }
+        }
+        return ackCount >= majority ? index : NO_QUORUM;
+    }
+
+    /**
+     * Leader fast path: send Accept for seq under the range promise, with
+     * the previous commit piggybacked. Returns true if seq was decided
+     * locally, false if the caller must fall back to the Prepare path.
+     */
+    boolean leaderAccept(int seq, Object value, TraceContext trace) {
+        int ballot = leaderBallot(seq);
+        if (ballot < 0) {
+            return false;
+        }
+        // claim seq for this ballot locally first so that two proposer
+        // threads can never send different values under the same ballot.
+        // The claim is this acceptor's Accept, so it honors every promise,
+        // the range one included, and is logged like any other
+        Instance curIns = instanceLog.getOrCreate(seq);
+        if (curIns == null) {
+            return false;
+        }
+        long logged = -1;
+        synchronized (curIns) {
+            if (curIns.highestAcceptedProposal == ballot) {
+                value = curIns.value;
+            } else if (curIns.highestAcceptedProposal != -1 || promised(curIns, seq) > ballot) {
+                return false;
+            } else {
+                logged = acceptLocked(curIns, seq, ballot, value);
+            }
+        }
+        if (logged >= 0) {
+            wal.sync(logged);
+        }
+        Request req = new Request(seq, ballot, value, me, highestDoneSeq.get(me));
+        req.trace = trace;
+        mutex.lock();
+        try {
+            req.commitSeq = commitSeq;
+            req.commitValue = commitValue;
+        } finally {
+            mutex.unlock();
+        }
+        int ackCount = 0;
+        Response[] responses = broadcast("Accept", req);
+        notePreemption(responses, ballot);
+        for (Response response : responses) {
+            if (response == null) {
+                continue;
+            }
+            if (response.ack) {
+                ackCount++;
+            } else {
+                leaderHighestSeen = Math.max(leaderHighestSeen, response.proposalNumber);
+            }
+        }
+        if (ackCount < majority || leaseBlocks(responses)) {
+            // preempted or cut off from a majority: drop the range promise
+            leaderMutex.lock();
+            try {
+                if (leaderProposal == ballot) {
+                    leaderProposal = -1;
+                    leaderFrom = Integer.MAX_VALUE;
+                }
+            } finally {
+                leaderMutex.unlock();
+            }
+            return false;
+        }
+        Decide(new Request(seq, ballot, value, me, highestDoneSeq.get(me)));
+        mutex.lock();
+        try {
+            if (seq > commitSeq) {
+                commitSeq = seq;
+                commitValue = value;
+            }
+        } finally {
+            mutex.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the proposal number the leader may use to skip phase 1 on
+     * seq, running the range Prepare first if needed, or -1 if seq has to
+     * go through the per-instance Prepare path.
+     */
+    int leaderBallot(int seq) {
+        leaderMutex.lock();
+        try {
+            if (leaderProposal < 0) {
+                int proposalNum = ((leaderHighestSeen + 1 + this.peersNum)/this.peersNum)*this.peersNum + me;
+                leaderHighestSeen = proposalNum;
+                reserveBallot(proposalNum);
+                Request req = new Request(seq, proposalNum, null, me, highestDoneSeq.get(me));
+                req.range = true;
+                int ackCount = 0;
+                int maxSeq = -1;
+                for (Response response : broadcast("Prepare", req)) {
+                    if (response == null) {
+                        continue;
+                    }
+                    if (response.ack) {
+                        ackCount++;
+                        maxSeq = Math.max(maxSeq, response.maxSeq);
                     } else {
-                        responses[id] = Call("Decide", newReq, id);
+                        leaderHighestSeen = Math.max(leaderHighestSeen, response.proposalNumber);
                     }
                 }
+                if (ackCount < majority) {
+                    return -1;
+                }
+                // instances a promising acceptor already knows may hold an
+                // accepted value, so only the ones above them are free
+                leaderProposal = proposalNum;
+                leaderFrom = Math.max(seq, maxSeq + 1);
             }
+            return seq >= leaderFrom ? leaderProposal : -1;
+        } finally {
+            leaderMutex.unlock();
         }
+    }
 
+    /**
+     * The proposal number an acceptor has promised for seq, taking the
+     * Multi-Paxos range promise into account. Caller holds curIns's lock.
+     * prepareRange() writes rangeProposal before rangeFrom, so rangeFrom
+     * is read first.
+     */
+    int promised(Instance curIns, int seq) {
+        if (seq >= rangeFrom) {
+            return Math.max(curIns.minProposal, rangeProposal);
+        }
+        return curIns.minProposal;
     }
 
     /**
@@ -285,24 +914,75 @@ public class Paxos implements PaxosRMI, Runnable{
      */
     // RMI handler
     public Response Prepare(Request req) {
+        long start = System.nanoTime();
+        Response response = prepare(req);
+        Tracer.record(TRACE_SERVICE, "acceptor Prepare", req.trace, start);
+        return response;
+    }
+
+    Response prepare(Request req) {
         // your code here
-        mutex.lock();
-        try {
-            int n = req.proposalNumber;
-            if (instanceMap.get(req.seq) == null) {
-                instanceMap.put(req.seq, new Instance(-1,-1, null));
-            }
-            Instance curIns = instanceMap.get(req.seq);
-            highestDoneSeq[req.me] = req.highestDone;
-            if (n > curIns.minProposal) {
+        // acceptor state is locked per instance, so different seqs run in parallel
+        int n = req.proposalNumber;
+        noteRequest(req);
+        if (req.range) {
+            return prepareRange(req);
+        }
+        Instance curIns = instanceLog.getOrCreate(req.seq);
+        if (curIns == null) {
+            // already forgotten here
+            return forgotten();
+        }
+        Response response;
+        long logged = -1;
+        synchronized (curIns) {
+            int promised = promised(curIns, req.seq);
+            if (n > promised) {
                 curIns.minProposal = n;
-                return new Response(true, n, curIns.highestAcceptedProposal, curIns.value);
+                if (wal != null) {
+                    logged = wal.promise(req.seq, n);
+                }
+                response = new Response(true, n, curIns.highestAcceptedProposal, curIns.value);
             } else {
-                return new Response(false);
+                // tell the proposer what it has to beat
+                response = new Response(false, promised, -1, null);
+            }
+        }
+        // the promise must be on disk before the proposer hears of it
+        if (logged >= 0) {
+            wal.sync(logged);
+        }
+        return reply(response);
+    }
+
+    /**
+     * Range Prepare from the stable leader: promise n for every instance
+     * >= req.seq and report the highest instance this acceptor knows of.
+     * An Accept racing with this either sees the new promise or creates
+     * its instance before max() is read, so the leader never skips phase 1
+     * on an instance that may hold an accepted value.
+     */
+    Response prepareRange(Request req) {
+        int n = req.proposalNumber;
+        long logged = -1;
+        rangeMutex.lock();
+        try {
+            if (n <= rangeProposal) {
+                return reply(new Response(false, rangeProposal, -1, null));
+            }
+            // keep covering the old range too, so no earlier promise is weakened
+            rangeProposal = n;
+            rangeFrom = Math.min(rangeFrom, req.seq);
+            if (wal != null) {
+                logged = wal.range(req.seq, n);
             }
         } finally {
-            mutex.unlock();
+            rangeMutex.unlock();
         }
+        if (logged >= 0) {
+            wal.sync(logged);
+        }
+        return reply(new Response(true, n, -1, null));
     }
 
     /**
@@ -312,24 +992,52 @@ public class Paxos implements PaxosRMI, Runnable{
      * @return respond to the accept request
      */
     public Response Accept(Request req) {
+        long start = System.nanoTime();
+        Response response = accept(req);
+        Tracer.record(TRACE_SERVICE, "acceptor Accept", req.trace, start);
+        return response;
+    }
+
+    Response accept(Request req) {
         // your code here
-        mutex.lock();
-        try {
-            int n = req.proposalNumber;
-            Instance curIns = instanceMap.get(req.seq);
-            instanceMap.put(req.seq, curIns);
-            highestDoneSeq[req.me] = req.highestDone;
-            if (n >= curIns.minProposal) {
-                curIns.minProposal = n;
-                curIns.highestAcceptedProposal = n;
-                curIns.value = req.value;
-                return new Response(true, n, n, req.value);
+        int n = req.proposalNumber;
+        noteRequest(req);
+        if (req.commitSeq >= 0) {
+            learn(req.commitSeq, req.commitValue);
+        }
+        // the stable leader sends Accept without a Prepare
+        Instance curIns = instanceLog.getOrCreate(req.seq);
+        if (curIns == null) {
+            return forgotten();
+        }
+        Response response;
+        long logged = -1;
+        synchronized (curIns) {
+            int promised = promised(curIns, req.seq);
+            if (n >= promised) {
+                logged = acceptLocked(curIns, req.seq, n, req.value);
+                response = new Response(true, n, n, req.value);
             } else {
-                return new Response(false);
+                response = new Response(false, promised, -1, null);
             }
-        } finally {
-            mutex.unlock();
         }
+        if (logged >= 0) {
+            wal.sync(logged);
+        }
+        return reply(response);
+    }
+
+    /**
+     * Accept value under proposal n for seq and append it to the wal.
+     * Returns the position to sync before anyone hears of it, -1 without a
+     * wal. Caller holds curIns and has checked n against promised().
+     */
+    long acceptLocked(Instance curIns, int seq, int n, Object value) {
+        curIns.minProposal = n;
+        curIns.highestAcceptedProposal = n;
+        curIns.value = value;
+        highestAccepted.accumulateAndGet(seq, Math::max);
+        return wal == null ? -1 : wal.accept(seq, n, value, valueCodec);
     }
 
     /**
@@ -341,15 +1049,192 @@ public class Paxos implements PaxosRMI, Runnable{
      */
     public Response Decide(Request req) {
         // your code here
-        mutex.lock();
+        long start = System.nanoTime();
+        noteRequest(req);
+        learn(req.seq, req.value);
+        Tracer.record(TRACE_SERVICE, "acceptor Decide", req.trace, start);
+        return reply(new Response(true));
+    }
+
+    /**
+     * A peer asks for a read lease, or only for the highest instance this
+     * peer accepted a value in when req.lease is false. A lease is granted
+     * unless another peer's grant is still running.
+     *
+     * @param req req(me, lease)
+     * @return ack if granted, with this peer's acceptedSeq
+     */
+    public Response Heartbeat(Request req) {
+        noteRequest(req);
+        if (req.commitSeq >= 0) {
+            learn(req.commitSeq, req.commitValue);
+        }
+        if (!req.lease) {
+            return reply(new Response(true));
+        }
+        boolean granted;
+        leaseMutex.lock();
         try {
-            highestDoneSeq[req.me] = req.highestDone;
-            Instance curIns = instanceMap.get(req.seq);
-            curIns.value = req.value;
-            curIns.state = State.Decided;
-            return new Response(true);
+            long now = System.nanoTime();
+            Lease current = lease;
+            granted = current == null || current.holder == req.me || now - current.expiry >= 0;
+            if (granted) {
+                lease = new Lease(req.me, now + TimeUnit.MILLISECONDS.toNanos(LEASE_MS));
+            }
         } finally {
-            mutex.unlock();
+            leaseMutex.unlock();
+        }
+        // acceptedSeq is read after the grant: an Accept that this peer
+        // acked without reporting the lease shows up in it
+        return reply(new Response(granted));
+    }
+
+    /**
+     * Nack for an instance this peer has forgotten. It still reports Max(),
+     * so a proposer that is far behind finds out through ClusterMax().
+     */
+    Response forgotten() {
+        return reply(new Response(false));
+    }
+
+    /**
+     * Fill in what every reply carries back to the sender: this peer's
+     * Max(), the highest instance it accepted, its highest Done() value and
+     * the holder of a running lease.
+     */
+    Response reply(Response response) {
+        response.maxSeq = instanceLog.max();
+        response.acceptedSeq = highestAccepted.get();
+        response.highestDone = highestDoneSeq.get(me);
+        Lease current = lease;
+        if (current != null && System.nanoTime() - current.expiry < 0) {
+            response.leaseHolder = current.holder;
+        }
+        return response;
+    }
+
+    /**
+     * A lagging peer asks for the decided values of req.count instances
+     * from req.seq on. Values are sent in whatever form they are stored,
+     * so a Payload is not decoded. If req.seq has been forgotten here the
+     * reply is a nack whose proposalNumber is this peer's Min().
+     *
+     * @param req req(seq, count)
+     * @return the decided values, null where an instance is not decided here
+     */
+    public Response Fetch(Request req) {
+        noteRequest(req);
+        int min = Min();
+        Response response;
+        if (req.seq < min) {
+            response = new Response(false, min, -1, null);
+        } else {
+            int max = instanceLog.max();
+            int n = (int) Math.max(0, Math.min(req.count, max - (long) req.seq + 1));
+            response = new Response(true);
+            response.values = new Object[n];
+            for (int i = 0; i < n; i++) {
+                Instance curIns = instanceLog.get(req.seq + i);
+                // state is written after value, so read it first
+                if (curIns != null && curIns.state == State.Decided) {
+                    response.values[i] = curIns.value;
+                }
+            }
+        }
+        return reply(response);
+    }
+
+    /**
+     * Learn the decided values of every instance from seq on that the other
+     * peers know of, FETCH_BATCH instances per call, instead of running a
+     * Paxos round for each missing instance. Returns false if an instance
+     * that is still missing has been forgotten, here or by the peers that
+     * answered; the application then has to get a snapshot of its state
+     * from another server and continue after it.
+     */
+    public boolean CatchUp(int seq) {
+        for (int i = 1; i < peersNum && !isDead(); i++) {
+            int peer = (me + i) % peersNum;
+            while (!isDead()) {
+                while (Status(seq).state == State.Decided) {
+                    seq++;
+                }
+                if (seq < Min()) {
+                    return false;
+                }
+                Request req = new Request(seq, 0, null, me, highestDoneSeq.get(me));
+                req.count = FETCH_BATCH;
+                req.minDone = minDone.get();
+                Response response = Call("Fetch", req, peer);
+                if (response == null) {
+                    break;
+                }
+                clusterMax.accumulateAndGet(response.maxSeq, Math::max);
+                noteDone(peer, response.highestDone);
+                if (!response.ack) {
+                    // a peer only forgets below its Min(), so every peer,
+                    // this one included, has called Done() up to there
+                    for (int id = 0; id < peersNum; id++) {
+                        noteDone(id, response.proposalNumber - 1);
+                    }
+                    break;
+                }
+                int learned = 0;
+                for (int j = 0; j < response.values.length; j++) {
+                    if (response.values[j] != null) {
+                        learn(seq + j, response.values[j]);
+                        learned++;
+                    }
+                }
+                if (learned == 0 || Status(seq).state != State.Decided) {
+                    // this peer has nothing more, or a hole; try the next one
+                    break;
+                }
+            }
+        }
+        return seq >= Min();
+    }
+
+    /**
+     * The highest instance any peer has reported in a reply to this peer,
+     * or this peer's own Max() if that is higher. An application that is
+     * far behind it should CatchUp().
+     */
+    public int ClusterMax() {
+        return Math.max(clusterMax.get(), Max());
+    }
+
+    /**
+     * The highest instance any peer has reported to have accepted a value
+     * in or learned, or this peer's own if that is higher. Unlike
+     * ClusterMax() it ignores instances that only saw a Prepare, which may
+     * never be decided, so an application can wait for it to be applied.
+     */
+    public int ClusterAccepted() {
+        return Math.max(clusterAccepted.get(), highestAccepted.get());
+    }
+
+    /**
+     * Record that seq was decided with value.
+     */
+    void learn(int seq, Object value) {
+        Instance curIns = seq < Min() ? null : instanceLog.getOrCreate(seq);
+        if (curIns == null) {
+            // already forgotten
+            return;
+        }
+        synchronized (curIns) {
+            if (wal != null && curIns.state != State.Decided) {
+                // not synced: a decision lost in a crash is simply learned again
+                wal.decide(seq, value, valueCodec);
+            }
+            curIns.value = value;
+            curIns.state = State.Decided;
+        }
+        highestAccepted.accumulateAndGet(seq, Math::max);
+        CompletableFuture<Object> future = decisions.remove(seq);
+        if (future != null) {
+            future.complete(open(curIns, value));
         }
     }
 
@@ -361,14 +1246,190 @@ public class Paxos implements PaxosRMI, Runnable{
      */
     public void Done(int seq) {
         // Your code here
-        mutex.lock();
+        noteDone(me, seq);
+    }
+
+    /**
+     * Take in the Done() information piggybacked on a request: the
+     * sender's own Done() value and its Min() - 1, which every peer's
+     * Done() value is known to have reached.
+     */
+    void noteRequest(Request req) {
+        noteDone(req.me, req.highestDone);
+        minDone.accumulateAndGet(req.minDone, Math::max);
+    }
+
+    /**
+     * Record the Done() value of a peer and move the cached watermark if
+     * it changed. Lock-free: both only ever move up.
+     */
+    void noteDone(int peer, int done) {
+        if (highestDoneSeq.getAndAccumulate(peer, done, Math::max) >= done) {
+            return;
+        }
+        if (wal != null) {
+            wal.done(peer, done);
+        }
+        int minDoneValue = Integer.MAX_VALUE;
+        for (int i = 0; i < peersNum; i++) {
+            minDoneValue = Math.min(minDoneValue, highestDoneSeq.get(i));
+        }
+        minDone.accumulateAndGet(minDoneValue, Math::max);
+    }
+
+    /**
+     * Forget the instances below Min() in one batch. Runs on the
+     * compactor thread every COMPACT_INTERVAL_MS.
+     */
+    void compact() {
+        if (isDead()) {
+            return;
+        }
+        if (wal != null && wal.needsCheckpoint()) {
+            checkpoint();
+        }
+        int min = Min();
+        if (instanceLog.low() >= min) {
+            return;
+        }
+        instanceLog.truncate(min);
+        decisions.keySet().removeIf(seq -> seq < min);
+    }
+
+    /**
+     * Rebuild the acceptor state, the Done() values of all peers and the
+     * proposal number reserve from the wal, then checkpoint so that only
+     * the live state stays on disk. Called from the constructor before the
+     * peer is reachable.
+     */
+    void recover() {
+        try {
+            wal.recover(new AcceptorLog.Replay() {
+                public void promise(int seq, int n) {
+                    Instance curIns = instanceLog.getOrCreate(seq);
+                    curIns.minProposal = Math.max(curIns.minProposal, n);
+                }
+
+                public void accept(int seq, int n, Payload value) {
+                    Instance curIns = instanceLog.getOrCreate(seq);
+                    curIns.minProposal = Math.max(curIns.minProposal, n);
+                    highestAccepted.accumulateAndGet(seq, Math::max);
+                    if (n > curIns.highestAcceptedProposal) {
+                        curIns.highestAcceptedProposal = n;
+                        if (curIns.state != State.Decided) {
+                            curIns.value = value;
+                        }
+                    }
+                }
+
+                public void range(int from, int n) {
+                    rangeProposal = Math.max(rangeProposal, n);
+                    rangeFrom = Math.min(rangeFrom, from);
+                }
+
+                public void decide(int seq, Payload value) {
+                    Instance curIns = instanceLog.getOrCreate(seq);
+                    curIns.value = value;
+                    curIns.state = State.Decided;
+                    highestAccepted.accumulateAndGet(seq, Math::max);
+                }
+
+                public void done(int peer, int done) {
+                    highestDoneSeq.accumulateAndGet(peer, done, Math::max);
+                }
+
+                public void ballot(int n) {
+                    ballotFloor = Math.max(ballotFloor, n);
+                }
+            });
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        int minDoneValue = Integer.MAX_VALUE;
+        for (int i = 0; i < peersNum; i++) {
+            minDoneValue = Math.min(minDoneValue, highestDoneSeq.get(i));
+        }
+        minDone.set(minDoneValue);
+        instanceLog.truncate(Min());
+        ballotReserve = ballotFloor;
+        leaderHighestSeen = Math.max(leaderHighestSeen, ballotFloor);
+        checkpoint();
+    }
+
+    /**
+     * Start a new wal generation, copy the live acceptor state into it and
+     * delete the older generations once that copy is durable. Acceptors
+     * keep appending meanwhile; replay does not depend on record order.
+     */
+    void checkpoint() {
+        try {
+            int old = wal.rotate();
+            int min = Min();
+            for (Instance curIns : instanceLog.live()) {
+                int seq = curIns.seq;
+                if (seq < min) {
+                    continue;
+                }
+                synchronized (curIns) {
+                    if (curIns.minProposal >= 0) {
+                        wal.promise(seq, curIns.minProposal);
+                    }
+                    if (curIns.state == State.Decided) {
+                        wal.decide(seq, curIns.value, valueCodec);
+                    } else if (curIns.highestAcceptedProposal >= 0) {
+                        wal.accept(seq, curIns.highestAcceptedProposal, curIns.value, valueCodec);
+                    }
+                }
+            }
+            rangeMutex.lock();
+            try {
+                if (rangeProposal >= 0) {
+                    wal.range(rangeFrom, rangeProposal);
+                }
+            } finally {
+                rangeMutex.unlock();
+            }
+            for (int i = 0; i < peersNum; i++) {
+                if (highestDoneSeq.get(i) >= 0) {
+                    wal.done(i, highestDoneSeq.get(i));
+                }
+            }
+            ballotMutex.lock();
+            try {
+                if (ballotReserve >= 0) {
+                    wal.ballot(ballotReserve);
+                }
+            } finally {
+                ballotMutex.unlock();
+            }
+            wal.sync(wal.position());
+            wal.deleteThrough(old);
+        } catch (java.io.IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Make sure proposal number n can never be reused after a restart. The
+     * reserve is extended BALLOT_RESERVE_ROUNDS rounds at a time, so only
+     * one proposal in that many waits for an fsync.
+     */
+    void reserveBallot(int n) {
+        if (wal == null) {
+            return;
+        }
+        long logged;
+        ballotMutex.lock();
         try {
-            if (highestDoneSeq[me] <= seq) {
-                highestDoneSeq[me] = seq;
+            if (n > ballotReserve) {
+                ballotReserve = n + BALLOT_RESERVE_ROUNDS * peersNum;
+                ballotLogged = wal.ballot(ballotReserve);
             }
+            logged = ballotLogged;
         } finally {
-            mutex.unlock();
+            ballotMutex.unlock();
         }
+        wal.sync(logged);
     }
 
 
@@ -379,19 +1440,7 @@ public class Paxos implements PaxosRMI, Runnable{
      */
     public int Max(){
         // Your code here
-        mutex.lock();
-        try {
-            if (instanceMap.isEmpty()) {
-                return -1;
-            }
-            int maxSeq = Integer.MIN_VALUE;
-            for (int seq : instanceMap.keySet()) {
-                maxSeq = Math.max(maxSeq, seq);
-            }
-            return maxSeq;
-        } finally {
-            mutex.unlock();
-        }
+        return instanceLog.max();
     }
 
     /**
@@ -424,23 +1473,8 @@ public class Paxos implements PaxosRMI, Runnable{
      */
     public int Min(){
         // Your code here
-        mutex.lock();
-        try {
-            int minDoneValue = Integer.MAX_VALUE;
-            for (int done : highestDoneSeq) {
-                minDoneValue = Math.min(minDoneValue, done);
-            }
-            Iterator<Map.Entry<Integer, Instance>> iterator = instanceMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<Integer, Instance> entry = iterator.next();
-                if (entry.getKey() < minDoneValue) {
-                    iterator.remove();
-                }
-            }
-            return minDoneValue + 1;
-        } finally {
-            mutex.unlock();
-        }
+        // the watermark is cached by noteDone(); the compactor does the forgetting
+        return minDone.get() + 1;
     }
 
 
@@ -450,22 +1484,42 @@ public class Paxos implements PaxosRMI, Runnable{
      * and if so what the agreed value is. Status()
      * should just inspect the local peer state;
      * it should not contact other Paxos peers.
+     * It does not take the peer's lock.
      */
     public retStatus Status(int seq){
         // Your code here
-        mutex.lock();
-        try {
-            if (seq < Min()) {
-                return new retStatus(State.Forgotten, null);
-            }
-            if (!instanceMap.containsKey(seq)) {
-                return new retStatus(State.Pending, null);
-            }
-            Instance curIns = instanceMap.get(seq);
-            return new retStatus(curIns.state, curIns.value);
-        } finally {
-            mutex.unlock();
+        if (seq < Min()) {
+            return new retStatus(State.Forgotten, null);
+        }
+        Instance curIns = instanceLog.get(seq);
+        if (curIns == null) {
+            return new retStatus(State.Pending, null);
         }
+        // state is written after value, so read it first
+        State state = curIns.state;
+        Object value = curIns.value;
+        return new retStatus(state, state == State.Decided ? open(curIns, value) : value);
+    }
+
+    /**
+     * Returns a future that completes with the decided value of seq as soon
+     * as this peer learns the decision, so the application does not have to
+     * poll Status(). It completes exceptionally if seq has been forgotten.
+     * Non-async callbacks run on the thread that applied the Decide, which
+     * may be an RMI handler; attach slow work with the *Async methods.
+     */
+    public CompletableFuture<Object> Decision(int seq){
+        CompletableFuture<Object> future = decisions.computeIfAbsent(seq, k -> new CompletableFuture<>());
+        // the decision may have landed before the future was registered
+        retStatus ret = Status(seq);
+        if (ret.state == State.Decided) {
+            decisions.remove(seq, future);
+            future.complete(ret.v);
+        } else if (ret.state == State.Forgotten) {
+            decisions.remove(seq, future);
+            future.completeExceptionally(new IllegalStateException("instance " + seq + " was forgotten"));
+        }
+        return future;
     }
 
     /**
@@ -482,7 +1536,48 @@ public class Paxos implements PaxosRMI, Runnable{
     }
 
     public int getInstanceNum(){
-        return this.instanceMap.size();
+        return this.instanceLog.size();
+    }
+
+    /**
+     * Phase latencies, retries, preemptions, RPC failures per peer and the
+     * instance log watermarks of this peer; export() it to see them in JMX.
+     */
+    public Metrics getMetrics(){
+        return this.metrics;
+    }
+
+    public StubCache<PaxosRMI> getStubCache(){
+        return this.rmi == null ? null : this.rmi.getStubCache();
+    }
+
+    /**
+     * Release what a dead peer holds besides its registry: the exported
+     * object, which peers may still reach through a cached stub, the
+     * transport, the background threads and the wal. The compactor is
+     * stopped before the wal is closed, so that it cannot checkpoint into
+     * a closed log.
+     */
+    private void shutdown() {
+        if (this.registry != null) {
+            try {
+                UnicastRemoteObject.unexportObject(this, true);
+            } catch (Exception e) {
+                // not exported
+            }
+        }
+        this.transport.close();
+        this.leaseTimer.shutdownNow();
+        this.rpcPool.shutdownNow();
+        this.compactor.shutdownNow();
+        try {
+            this.compactor.awaitTermination(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.wal != null) {
+            this.wal.close();
+        }
     }
 
     /**
@@ -499,6 +1594,7 @@ public class Paxos implements PaxosRMI, Runnable{
                 System.out.println("None reference");
             }
         }
+        shutdown();
     }
 
     public boolean isDead(){
@@ -124,6 +124,74 @@ public class PaxosTest {
 
     }
 
+    @Test
+    public void TestKillStopsThreads(){
+
+        final int npaxos = 3;
+        Paxos[] pxa = initPaxos(npaxos);
+
+        System.out.println("Test: Kill stops a peer's threads ...");
+        pxa[0].Start(0, "hello");
+        waitn(pxa, 0, npaxos);
+        cleanup(pxa);
+        for(int i = 0; i < npaxos; i++){
+            assertTrue("a killed peer keeps its threads", pxa[i].rpcPool.isShutdown());
+            assertTrue("a killed peer keeps compacting", pxa[i].compactor.isTerminated());
+        }
+        System.out.println("... Passed");
+
+    }
+
+    @Test
+    public void TestFarAheadInstances(){
+
+        final int npaxos = 5;
+        Paxos[] pxa = initPaxos(npaxos);
+
+        System.out.println("Test: Far-ahead instances ...");
+        pxa[0].Start(Integer.MAX_VALUE, 1);
+        pxa[1].Start(InstanceLog.MAX_CAPACITY + 8, 2);
+        waitn(pxa, Integer.MAX_VALUE, npaxos);
+        waitn(pxa, InstanceLog.MAX_CAPACITY + 8, npaxos);
+        pxa[2].Start(0, 800);
+        waitn(pxa, 0, npaxos);
+        InstanceLog log = new InstanceLog(16);
+        log.getOrCreate(Integer.MAX_VALUE);
+        log.getOrCreate(InstanceLog.MAX_CAPACITY + 3);
+        log.getOrCreate(3);
+        assertEquals(3, log.size());
+        assertTrue(log.slots.length() <= 16);
+        log.truncate(4);
+        assertEquals(2, log.size());
+        assertNotNull(log.get(InstanceLog.MAX_CAPACITY + 3));
+        assertEquals(InstanceLog.MAX_CAPACITY + 3, log.get(InstanceLog.MAX_CAPACITY + 3).seq);
+        assertEquals(2, log.live().size());
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestReadIndex(){
+
+        final int npaxos = 3;
+        Paxos[] pxa = initPaxos(npaxos);
+
+        System.out.println("Test: ReadIndex skips instances that only saw a Prepare ...");
+        for(int seq = 0; seq < 3; seq++){
+            pxa[seq].Start(seq, seq);
+            waitn(pxa, seq, npaxos);
+        }
+        for(int i = 0; i < npaxos; i++){
+            assertTrue(pxa[i].Prepare(new Request(30, 1, null, 1, -1)).ack);
+        }
+        assertEquals(30, pxa[0].Max());
+        assertEquals(2, pxa[0].ReadIndex());
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
     @Test
     public void TestDeaf(){
 
@@ -231,4 +299,532 @@ public class PaxosTest {
     }
 
 
+    @Test
+    public void TestStableLeader(){
+
+        final int npaxos = 5;
+        Paxos[] pxa = initPaxos(npaxos);
+        for(int i = 0; i < npaxos; i++){
+            pxa[i].setLeader(0);
+        }
+
+        System.out.println("Test: Stable leader skips prepare ...");
+        for(int seq = 0; seq < 10; seq++){
+            pxa[0].Start(seq, seq*10);
+            waitn(pxa, seq, 1);
+        }
+        // followers learn each decision from the next piggybacked commit
+        for(int seq = 0; seq < 9; seq++){
+            waitn(pxa, seq, npaxos);
+        }
+        pxa[1].Start(9, "other");
+        waitn(pxa, 9, npaxos);
+        assertFalse("follower changed a decided value", !pxa[1].Status(9).v.equals(90));
+        System.out.println("... Passed");
+
+        System.out.println("Test: Leader honors its own acceptor's range promise ...");
+        Request competing = new Request(20, pxa[0].leaderProposal + 100*npaxos + 1, null, 1, -1);
+        competing.range = true;
+        assertTrue(pxa[0].Prepare(competing).ack);
+        assertFalse("claimed under a weaker ballot", pxa[0].leaderAccept(20, "stale", null));
+        Paxos.Instance claimed = pxa[0].instanceLog.get(20);
+        assertTrue("accepted without a promise", claimed == null || claimed.highestAcceptedProposal == -1);
+        System.out.println("... Passed");
+
+        System.out.println("Test: Leader failure falls back to prepare ...");
+        pxa[0].Kill();
+        pxa[0] = null;
+        pxa[1].Start(10, "after");
+        waitn(pxa, 10, npaxos-1);
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestStableLeaderIdle(){
+
+        final int npaxos = 3;
+        Paxos[] pxa = initPaxos(npaxos);
+        for(int i = 0; i < npaxos; i++){
+            pxa[i].setLeader(0);
+        }
+
+        System.out.println("Test: Followers learn the last instance of an idle leader ...");
+        for(int seq = 0; seq < 5; seq++){
+            pxa[0].Start(seq, seq*10);
+            waitn(pxa, seq, 1);
+        }
+        // no further Accept carries the commit of instance 4
+        waitn(pxa, 4, npaxos);
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestNioTransport(){
+
+        final int npaxos = 5;
+        Paxos[] pxa = initPaxos(npaxos);
+        for(int i = 0; i < npaxos; i++){
+            pxa[i].setTransport(new NioTransport(i, pxa[i].peers, pxa[i].ports, 10000, Paxos.PAXOS_METHODS, MessageCodec.JAVA));
+        }
+
+        System.out.println("Test: NIO transport ...");
+        pxa[0].Start(0, "hello");
+        waitn(pxa, 0, npaxos);
+        for(int i = 0; i < npaxos; i++){
+            pxa[i].Start(1, 77);
+        }
+        waitn(pxa, 1, npaxos);
+        System.out.println("... Passed");
+
+        System.out.println("Test: NIO transport, deaf peer ...");
+        pxa[1].ports[0]= 1;
+        pxa[1].ports[npaxos-1]= 1;
+        pxa[1].Start(2, "goodbye");
+        waitmajority(pxa, 2);
+        try {
+            Thread.sleep(500);
+        } catch (Exception e){
+            e.printStackTrace();
+        }
+        int nd = ndecided(pxa, 2);
+        assertFalse("a deaf peer heard about a decision " + nd, nd != npaxos-2);
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestDurableRestart(){
+
+        final int npaxos = 3;
+        String host = "127.0.0.1";
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+        java.io.File[] dirs = new java.io.File[npaxos];
+        Paxos[] pxa = new Paxos[npaxos];
+        try {
+            for(int i = 0 ; i < npaxos; i++){
+                ports[i] = 1100+i;
+                peers[i] = host;
+                dirs[i] = java.nio.file.Files.createTempDirectory("paxos-wal-" + i).toFile();
+            }
+        } catch (java.io.IOException e){
+            fail(e.toString());
+        }
+        for(int i = 0; i < npaxos; i++){
+            AcceptorLog wal = new AcceptorLog(dirs[i], i == 2);
+            wal.setCheckpointBytes(4096);
+            pxa[i] = new Paxos(i, peers, ports, wal);
+        }
+
+        System.out.println("Test: restart from the acceptor log ...");
+        for(int seq = 0; seq < 40; seq++){
+            pxa[seq % npaxos].Start(seq, "v" + seq);
+            waitn(pxa, seq, npaxos);
+            if(seq == 9){
+                // the next instances carry every peer's Done to the others
+                for(int i = 0; i < npaxos; i++){
+                    pxa[i].Done(9);
+                }
+            }
+        }
+        pxa[2].Kill();
+        pxa[2] = new Paxos(2, peers, ports, new AcceptorLog(dirs[2], true));
+        for(int seq = 0; seq < 40; seq++){
+            Paxos.retStatus ret = pxa[2].Status(seq);
+            if(seq < 10){
+                assertFalse("seq " + seq + " came back after Done", ret.state == State.Decided);
+            } else {
+                assertTrue("seq " + seq + " lost in restart", ret.state == State.Decided && ret.v.equals("v" + seq));
+            }
+        }
+        pxa[2].Start(40, "after");
+        waitn(pxa, 40, npaxos);
+        System.out.println("... Passed");
+
+        System.out.println("Test: restarted acceptor keeps its promises ...");
+        // peers 0 and 1 accept a value on 41, so it is chosen; with peer 1
+        // cut off, peer 2 can only learn it from the restarted peer 0
+        Request accept = new Request(41, 1000, "accepted", 0, -1);
+        assertTrue(pxa[0].Accept(accept).ack);
+        assertTrue(pxa[1].Accept(accept).ack);
+        pxa[0].Kill();
+        pxa[0] = new Paxos(0, peers, ports, new AcceptorLog(dirs[0], false));
+        Response promise = pxa[0].Prepare(new Request(41, 500, null, 1, -1));
+        assertFalse("restarted acceptor forgot its promise", promise.ack);
+        ports[1] = 1;
+        pxa[2].Start(41, "other");
+        waitmajority(pxa, 41);
+        assertEquals("accepted", pxa[2].Status(41).v);
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestSimNetwork(){
+
+        final int npaxos = 5;
+        SimNetwork net = new SimNetwork(npaxos, 42);
+        net.setTimeScale(0);
+        Paxos[] pxa = new Paxos[npaxos];
+        for(int i = 0; i < npaxos; i++){
+            pxa[i] = new Paxos(i, npaxos, net.endpoint(i));
+        }
+
+        System.out.println("Test: simulated network, many instances ...");
+        final int ninstances = 1000;
+        long start = System.nanoTime();
+        for(int seq = 0; seq < ninstances; seq++){
+            pxa[seq % npaxos].Start(seq, seq);
+            long deadline = System.nanoTime() + 5000000000L;
+            while(ndecided(pxa, seq) < (npaxos/2) + 1 && System.nanoTime() < deadline){
+                Thread.yield();
+            }
+        }
+        waitn(pxa, ninstances - 1, npaxos);
+        for(int seq = 0; seq < ninstances; seq++){
+            waitmajority(pxa, seq);
+        }
+        System.out.println("  " + ninstances * 1000000000L / (System.nanoTime() - start) + " instances/s, "
+                + net.getSent() + " messages");
+        System.out.println("... Passed");
+
+        System.out.println("Test: simulated network, lossy, duplicating and reordering ...");
+        net.setTimeScale(0.01);
+        net.setLatency(SimNetwork.Latency.logNormal(500, 0.5));
+        net.setDropRate(0.1);
+        net.setDuplicateRate(0.1);
+        net.setReordering(0.2, 5000);
+        net.setTimeout(10000);
+        net.setCodec(new BinaryCodec());
+        for(int seq = ninstances; seq < ninstances + 20; seq++){
+            for(int i = 0; i < npaxos; i++){
+                pxa[i].Start(seq, "v" + i);
+            }
+        }
+        for(int seq = ninstances; seq < ninstances + 20; seq++){
+            waitn(pxa, seq, npaxos);
+        }
+        assertTrue("nothing was dropped", net.getDropped() > 0);
+        assertTrue("nothing was duplicated", net.getDuplicated() > 0);
+        System.out.println("... Passed");
+
+        System.out.println("Test: simulated network, partition ...");
+        net.setDropRate(0);
+        net.partition(new int[]{0, 1, 2}, new int[]{3, 4});
+        int seq = ninstances + 20;
+        pxa[3].Start(seq, "minority");
+        try {
+            Thread.sleep(200);
+        } catch (Exception e){
+            e.printStackTrace();
+        }
+        assertEquals("a minority decided", 0, ndecided(pxa, seq));
+        pxa[0].Start(seq, "majority");
+        waitmajority(pxa, seq);
+        net.heal();
+        waitn(pxa, seq, npaxos);
+        assertEquals("majority", pxa[4].Status(seq).v);
+        System.out.println("... Passed");
+
+        System.out.println("Test: unreliable peers ...");
+        net.setLatency(SimNetwork.Latency.fixed(0));
+        net.setDuplicateRate(0);
+        net.setReordering(0, 0);
+        for(int i = 0; i < npaxos; i++){
+            pxa[i].setUnreliable();
+        }
+        for(seq = ninstances + 21; seq < ninstances + 31; seq++){
+            // a peer whose Decide was lost learns the value later
+            pxa[seq % npaxos].Start(seq, seq);
+            waitmajority(pxa, seq);
+        }
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestGatherGivesUp(){
+
+        final int npaxos = 5;
+        SimNetwork net = new SimNetwork(npaxos, 7);
+        net.setTimeScale(1);
+        net.setLatency(0, npaxos-1, SimNetwork.Latency.fixed(10000000));
+        Paxos[] pxa = new Paxos[npaxos];
+        for(int i = 0; i < npaxos; i++){
+            pxa[i] = new Paxos(i, npaxos, net.endpoint(i));
+        }
+
+        System.out.println("Test: a phase a majority rejected does not wait for stragglers ...");
+        for(int i = 1; i < npaxos-1; i++){
+            assertTrue(pxa[i].Prepare(new Request(0, 1000, null, i, -1)).ack);
+        }
+        long start = System.nanoTime();
+        Response[] responses = pxa[0].broadcast("Prepare", new Request(0, 5, null, 0, -1));
+        long ms = (System.nanoTime() - start) / 1000000;
+        assertTrue("waited " + ms + "ms for a peer that could not help", ms < Paxos.PHASE_TIMEOUT_MS / 2);
+        assertNull(responses[npaxos-1]);
+        for(int i = 1; i < npaxos-1; i++){
+            assertFalse(responses[i].ack);
+        }
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestStubCache(){
+
+        final int npaxos = 3;
+        String[] peers = new String[npaxos];
+        int[] ports = new int[npaxos];
+        Paxos[] pxa = new Paxos[npaxos];
+        for(int i = 0 ; i < npaxos; i++){
+            ports[i] = 1100+i;
+            peers[i] = "127.0.0.1";
+        }
+        for(int i = 0; i < npaxos; i++){
+            pxa[i] = new Paxos(i, peers, ports);
+        }
+
+        System.out.println("Test: peer stubs are cached ...");
+        pxa[0].Start(0, 0);
+        waitn(pxa, 0, npaxos);
+        StubCache<PaxosRMI> stubs = pxa[0].getStubCache();
+        assertTrue(stubs.isCached(1));
+        assertTrue(stubs.isCached(2));
+        long resolutions = stubs.getResolutions();
+        long hits = stubs.getHits();
+        for(int seq = 1; seq < 5; seq++){
+            pxa[0].Start(seq, seq);
+            waitn(pxa, seq, npaxos);
+        }
+        assertEquals("a cached stub was looked up again", resolutions, stubs.getResolutions());
+        assertTrue(stubs.getHits() > hits);
+        System.out.println("... Passed");
+
+        System.out.println("Test: stale stubs are resolved again ...");
+        ports[1] = 1;
+        assertFalse("a stub is used for another port", stubs.isCached(1));
+        ports[1] = 1101;
+        assertTrue(stubs.isCached(1));
+        stubs.invalidate(1);
+        assertFalse(stubs.isCached(1));
+        pxa[0].Start(5, 5);
+        waitn(pxa, 5, npaxos);
+        assertTrue(stubs.isCached(1));
+        assertEquals(resolutions + 1, stubs.getResolutions());
+
+        // the stub of a restarted peer fails, and is replaced on the same call
+        pxa[2].Kill();
+        pxa[2] = new Paxos(2, peers, ports);
+        pxa[0].Start(6, 6);
+        waitn(pxa, 6, npaxos);
+        assertTrue(stubs.getResolutions() > resolutions + 1);
+        resolutions = stubs.getResolutions();
+        pxa[0].Start(7, 7);
+        waitn(pxa, 7, npaxos);
+        assertEquals(resolutions, stubs.getResolutions());
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestProposerScheduler(){
+
+        System.out.println("Test: bounded scheduler blocks Start() when full ...");
+        ProposerScheduler bounded = ProposerScheduler.bounded(1, 1);
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        java.util.concurrent.atomic.AtomicInteger ran = new java.util.concurrent.atomic.AtomicInteger();
+        Runnable blocked = () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e){
+                e.printStackTrace();
+            }
+            ran.incrementAndGet();
+        };
+        bounded.submit(blocked);
+        bounded.submit(blocked);
+        Thread third = new Thread(() -> bounded.submit(ran::incrementAndGet));
+        third.start();
+        try {
+            third.join(300);
+            assertTrue("submit() did not block on a full scheduler", third.isAlive());
+            release.countDown();
+            third.join(2000);
+            assertFalse(third.isAlive());
+            long deadline = System.currentTimeMillis() + 2000;
+            while(ran.get() < 3 && System.currentTimeMillis() < deadline){
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e){
+            e.printStackTrace();
+        }
+        assertEquals(3, ran.get());
+        bounded.shutdown();
+        System.out.println("... Passed");
+
+        System.out.println("Test: proposers run without virtual threads ...");
+        ProposerScheduler scheduler = ProposerScheduler.virtualThreads();
+        java.util.concurrent.CompletableFuture<Thread> thread = new java.util.concurrent.CompletableFuture<Thread>();
+        scheduler.submit(() -> thread.complete(Thread.currentThread()));
+        try {
+            Thread t = thread.get(2, java.util.concurrent.TimeUnit.SECONDS);
+            if(Runtime.version().feature() < 21){
+                // the reflective lookup fails and a cached pool of daemon threads is used
+                assertEquals("paxos-proposer", t.getName());
+                assertTrue(t.isDaemon());
+            }
+        } catch (Exception e){
+            fail(e.toString());
+        }
+        scheduler.shutdown();
+        System.out.println("... Passed");
+
+        System.out.println("Test: Paxos on a bounded scheduler ...");
+        final int npaxos = 3;
+        Paxos[] pxa = initPaxos(npaxos);
+        for(int i = 0; i < npaxos; i++){
+            pxa[i].setProposerScheduler(ProposerScheduler.bounded(2, 2));
+        }
+        for(int seq = 0; seq < 20; seq++){
+            pxa[seq % npaxos].Start(seq, seq);
+        }
+        for(int seq = 0; seq < 20; seq++){
+            waitn(pxa, seq, npaxos);
+        }
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestDecisionFuture(){
+
+        final int npaxos = 3;
+        Paxos[] pxa = initPaxos(npaxos);
+
+        System.out.println("Test: decision futures ...");
+        java.util.concurrent.CompletableFuture<Object> pending = pxa[2].Decision(0);
+        assertFalse(pending.isDone());
+        pxa[0].Start(0, "hello");
+        try {
+            assertEquals("hello", pending.get(5, java.util.concurrent.TimeUnit.SECONDS));
+        } catch (Exception e){
+            fail(e.toString());
+        }
+        waitn(pxa, 0, npaxos);
+        java.util.concurrent.CompletableFuture<Object> decided = pxa[1].Decision(0);
+        assertTrue("a decided instance was not completed at once", decided.isDone());
+        assertEquals("hello", decided.join());
+
+        for(int i = 0; i < npaxos; i++){
+            pxa[i].Done(0);
+        }
+        pxa[0].Start(1, "world");
+        waitn(pxa, 1, npaxos);
+        long deadline = System.currentTimeMillis() + 2000;
+        while(pxa[0].Min() <= 0 && System.currentTimeMillis() < deadline){
+            try {
+                Thread.sleep(10);
+            } catch (Exception e){
+                e.printStackTrace();
+            }
+        }
+        assertTrue(pxa[0].Decision(0).isCompletedExceptionally());
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestBackgroundForget(){
+
+        final int npaxos = 3;
+        Paxos[] pxa = initPaxos(npaxos);
+
+        System.out.println("Test: Status() and Min() leave the log alone ...");
+        for(int seq = 0; seq < 10; seq++){
+            pxa[seq % npaxos].Start(seq, seq);
+        }
+        for(int seq = 0; seq < 10; seq++){
+            waitn(pxa, seq, npaxos);
+        }
+        int instances = pxa[0].getInstanceNum();
+        for(int seq = 0; seq < 100; seq++){
+            pxa[0].Status(seq);
+            pxa[0].Min();
+        }
+        assertEquals(instances, pxa[0].getInstanceNum());
+        System.out.println("... Passed");
+
+        System.out.println("Test: done instances are forgotten in the background ...");
+        for(int i = 0; i < npaxos; i++){
+            pxa[i].Done(9);
+        }
+        for(int i = 0; i < npaxos; i++){
+            pxa[i].Start(10 + i, "x");
+        }
+        for(int i = 0; i < npaxos; i++){
+            waitn(pxa, 10 + i, npaxos);
+        }
+        // only the instance counts are read, nothing that could forget on the side
+        long deadline = System.currentTimeMillis() + 2000;
+        boolean forgotten = false;
+        while(!forgotten && System.currentTimeMillis() < deadline){
+            forgotten = true;
+            for(int i = 0; i < npaxos; i++){
+                forgotten &= pxa[i].getInstanceNum() <= npaxos;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (Exception e){
+                e.printStackTrace();
+            }
+        }
+        assertTrue("done instances were kept", forgotten);
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
+    @Test
+    public void TestPerInstanceLocking(){
+
+        final int npaxos = 3;
+        Paxos[] pxa = initPaxos(npaxos);
+
+        System.out.println("Test: acceptor handlers only lock their own instance ...");
+        Paxos.Instance held = pxa[0].instanceLog.getOrCreate(5);
+        java.util.concurrent.CompletableFuture<Response> other;
+        java.util.concurrent.CompletableFuture<Response> same;
+        synchronized (held) {
+            other = java.util.concurrent.CompletableFuture.supplyAsync(() -> pxa[0].Prepare(new Request(6, 1, null, 1, -1)));
+            same = java.util.concurrent.CompletableFuture.supplyAsync(() -> pxa[0].Prepare(new Request(5, 1, null, 1, -1)));
+            try {
+                assertTrue(other.get(2, java.util.concurrent.TimeUnit.SECONDS).ack);
+                Thread.sleep(100);
+            } catch (Exception e){
+                fail("a handler for another instance was blocked: " + e);
+            }
+            assertFalse("a handler ran without its instance's lock", same.isDone());
+        }
+        try {
+            assertTrue(same.get(2, java.util.concurrent.TimeUnit.SECONDS).ack);
+        } catch (Exception e){
+            fail(e.toString());
+        }
+        System.out.println("... Passed");
+        cleanup(pxa);
+
+    }
+
 }
@@ -0,0 +1,55 @@
+package paxos;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A proposed value in encoded form. Values that arrive through a binary
+ * transport stay opaque bytes while Paxos stores, accepts and forwards
+ * them; they are only decoded with the peer's ValueCodec when the
+ * application asks for a decided value. Payloads recovered from the
+ * acceptor log may also travel over RMI, so they are Serializable.
+ */
+public class Payload implements Serializable {
+    static final long serialVersionUID=3L;
+    final byte[] array;
+    final int offset;
+    final int length;
+
+    public Payload(byte[] array, int offset, int length) {
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Serialize only the slice, not the frame it was read from.
+     */
+    Object writeReplace() {
+        if (offset == 0 && length == array.length) {
+            return this;
+        }
+        return new Payload(Arrays.copyOfRange(array, offset, offset + length), 0, length);
+    }
+
+    public Object decode(ValueCodec codec) throws java.io.IOException {
+        return codec.read(ByteBuf.wrap(array, offset, length));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Payload)) {
+            return false;
+        }
+        Payload other = (Payload) obj;
+        return Arrays.equals(array, offset, offset + length, other.array, other.offset, other.offset + other.length);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = 1;
+        for (int i = offset; i < offset + length; i++) {
+            h = 31 * h + array[i];
+        }
+        return h;
+    }
+}
@@ -0,0 +1,82 @@
+package paxos;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs the proposer task that Paxos.Start() creates for an instance.
+ * virtualThreads() gives every proposer its own cheap thread; bounded()
+ * caps the number of proposers and makes Start() block when it is full.
+ */
+public interface ProposerScheduler {
+
+    void submit(Runnable proposer);
+
+    /**
+     * Stop taking new proposers; the running ones finish on their own.
+     */
+    void shutdown();
+
+    /**
+     * One virtual thread per proposer. Falls back to a cached pool of
+     * daemon threads on a JVM without virtual threads.
+     */
+    static ProposerScheduler virtualThreads() {
+        ExecutorService executor;
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            executor = Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "paxos-proposer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        final ExecutorService proposers = executor;
+        return new ProposerScheduler() {
+            public void submit(Runnable proposer) {
+                proposers.execute(proposer);
+            }
+
+            public void shutdown() {
+                proposers.shutdown();
+            }
+        };
+    }
+
+    /**
+     * At most threads proposers run at once and at most queueCapacity more
+     * wait for a thread; submit() blocks the caller beyond that.
+     */
+    static ProposerScheduler bounded(int threads, int queueCapacity) {
+        final ExecutorService proposers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "paxos-proposer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Semaphore permits = new Semaphore(threads + queueCapacity);
+        return new ProposerScheduler() {
+            public void submit(Runnable proposer) {
+                permits.acquireUninterruptibly();
+                try {
+                    proposers.execute(() -> {
+                        try {
+                            proposer.run();
+                        } finally {
+                            permits.release();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+
+            public void shutdown() {
+                proposers.shutdown();
+            }
+        };
+    }
+}
@@ -15,6 +15,13 @@ public class Request implements Serializable {
     public Object value;
     public int me; // indicate which machine sent the request
     public int highestDone; // piggyback the Done value to help other peers to learn
+    public boolean range; // Multi-Paxos: a Prepare that covers every instance >= seq
+    public int commitSeq = -1; // Multi-Paxos: piggybacked commit of an earlier instance, -1 if none
+    public Object commitValue;
+    public int count; // Fetch: number of instances wanted, starting at seq
+    public int minDone = -1; // the sender's Min() - 1, a lower bound on every peer's Done value
+    public boolean lease; // Heartbeat: the sender asks for a read lease
+    public TraceContext trace; // the span this request is part of, null if it is not traced
 
     // Your constructor and methods here
     public Request(int seq, int proposalNumber, Object value, int me, int highestDone) {
@@ -7,12 +7,17 @@ import java.io.Serializable;
  * Hint: Make it more generic such that you can use it for each RMI call.
  */
 public class Response implements Serializable {
-    static final long serialVersionUID=2L;
+    static final long serialVersionUID=3L;
     // your data here
     public boolean ack; // indicate ack of acceptors
     public int proposalNumber;
     public int numberAccepted;
     public Object valueAccepted;
+    public int maxSeq = -1; // highest instance known to the responding peer
+    public int acceptedSeq = -1; // highest instance the responding peer accepted a value in or learned
+    public int highestDone = -1; // highest Done() value of the responding peer
+    public Object[] values; // Fetch: decided values of seq, seq + 1, ..., null where not decided
+    public int leaseHolder = -1; // peer the responder has granted a read lease to, -1 if none is running
 
     // Your constructor and methods here
     public Response(boolean ack) {
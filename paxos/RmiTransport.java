@@ -0,0 +1,57 @@
+package paxos;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Transport over Java RMI. The receiving side is the object the owner
+ * exports in its own registry, so serve() has nothing to do; calls go
+ * through cached stubs (see StubCache).
+ */
+public class RmiTransport<T extends Remote> implements Transport {
+    StubCache<T> stubs;
+    Invoker<T> invoker;
+
+    /**
+     * Maps a method name onto the matching call on the remote interface.
+     */
+    public interface Invoker<T> {
+        Object invoke(T stub, String method, Object req) throws RemoteException;
+    }
+
+    public RmiTransport(String name, int[] ports, Invoker<T> invoker) {
+        this.stubs = new StubCache<>(name, ports);
+        this.invoker = invoker;
+    }
+
+    @Override
+    public Object call(int id, String method, Object req) {
+        try {
+            boolean cached = stubs.isCached(id);
+            T stub = stubs.get(id);
+            try {
+                return invoker.invoke(stub, method, req);
+            } catch (Exception e) {
+                // a cached stub may point at a peer that has since restarted
+                if (!cached || !StubCache.notDelivered(e)) {
+                    throw e;
+                }
+                return invoker.invoke(stubs.refresh(id), method, req);
+            }
+        } catch (Exception e) {
+            stubs.invalidate(id);
+            return null;
+        }
+    }
+
+    @Override
+    public void serve(Handler handler) {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public StubCache<T> getStubCache() {
+        return stubs;
+    }
+}
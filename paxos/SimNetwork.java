@@ -0,0 +1,314 @@
+package paxos;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-memory network between the peers of one process, for tests and
+ * benchmarks that need many rounds quickly, no ports, and faults on
+ * demand. Peer id talks through endpoint(id), a Transport; a Paxos built
+ * with Paxos(me, peersNum, transport) never touches RMI.
+ * <p>
+ * A call runs the handler of the destination in the calling thread, like a
+ * synchronous RPC, after the request latency, and returns after the reply
+ * latency. Per message the network can
+ * <ul>
+ * <li>delay it by a sample of the link's Latency,</li>
+ * <li>drop the request, or the reply after the handler ran,</li>
+ * <li>deliver the request twice, discarding the second reply,</li>
+ * <li>hold it back by up to reorderDelay, so later messages overtake it,</li>
+ * <li>refuse it because the peers are on different sides of a partition.</li>
+ * </ul>
+ * A lost or refused message costs the caller the timeout and returns null;
+ * a call to or from a closed endpoint (a killed peer) returns null at once.
+ * <p>
+ * Every random choice comes from one stream per link, split off the seed
+ * in a fixed order, and every message draws the same numbers whatever
+ * happens to it. A run that sends the same messages in the same order on
+ * each link therefore sees the same faults and latencies. The network does
+ * not fix that order, though: callers are real threads that sleep in real
+ * time and give up on a wall-clock timeout, so thread scheduling can change
+ * which message goes out first, and a seed does not replay a run exactly.
+ * <p>
+ * Latencies are simulated microseconds. The caller sleeps for them scaled
+ * by timeScale, so a test can model a WAN 1000 times faster than real
+ * time, or with timeScale 0 not wait at all.
+ */
+public class SimNetwork {
+    final int n;
+    final SplittableRandom[] links; // stream of link from -> to at from * n + to
+    final Transport.Handler[] handlers; // null while a peer is not serving
+    final Latency[] latency; // per link, like links
+    volatile double dropRate;
+    volatile double duplicateRate;
+    volatile double reorderRate;
+    volatile long reorderDelay; // most a reordered message is held back, in simulated microseconds
+    volatile long timeout; // simulated microseconds a caller waits for a lost message
+    volatile double timeScale; // real nanoseconds slept per simulated nanosecond
+    volatile int[] side; // peers on different sides of a partition cannot talk
+    volatile MessageCodec codec; // copies messages as a real transport would, null to pass them by reference
+
+    final LongAdder sent;
+    final LongAdder dropped;
+    final LongAdder duplicated;
+
+    /**
+     * Simulated message latencies, in microseconds.
+     */
+    public interface Latency {
+        long sample(SplittableRandom random);
+
+        static Latency fixed(long micros) {
+            return random -> micros;
+        }
+
+        static Latency uniform(long min, long max) {
+            return random -> min + random.nextLong(max - min + 1);
+        }
+
+        static Latency exponential(double mean) {
+            return random -> (long) (-mean * Math.log(1 - random.nextDouble()));
+        }
+
+        /**
+         * Most messages near median, with a long tail; sigma 0.5 puts p99 at
+         * about 3.2 times the median, sigma 1 at about 10 times.
+         */
+        static Latency logNormal(double median, double sigma) {
+            return random -> (long) (median * Math.exp(sigma * random.nextGaussian()));
+        }
+    }
+
+    public SimNetwork(int n, long seed) {
+        this.n = n;
+        this.links = new SplittableRandom[n * n];
+        SplittableRandom root = new SplittableRandom(seed);
+        for (int i = 0; i < n * n; i++) {
+            links[i] = root.split();
+        }
+        this.handlers = new Transport.Handler[n];
+        this.latency = new Latency[n * n];
+        Arrays.fill(latency, Latency.fixed(0));
+        this.reorderDelay = 10000;
+        this.timeout = 0;
+        this.timeScale = 1.0;
+        this.side = new int[n];
+        this.sent = new LongAdder();
+        this.dropped = new LongAdder();
+        this.duplicated = new LongAdder();
+    }
+
+    /**
+     * The transport of peer id.
+     */
+    public Transport endpoint(int id) {
+        return new Endpoint(id);
+    }
+
+    /*
+    What one peer sees of the network
+     */
+    class Endpoint implements Transport {
+        final int me;
+        volatile boolean closed;
+
+        Endpoint(int me) {
+            this.me = me;
+        }
+
+        @Override
+        public Object call(int id, String method, Object req) {
+            if (closed) {
+                return null;
+            }
+            return deliver(me, id, method, req);
+        }
+
+        @Override
+        public void serve(Handler handler) {
+            closed = false;
+            handlers[me] = handler;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            handlers[me] = null;
+        }
+    }
+
+    Object deliver(int from, int to, String method, Object req) {
+        sent.increment();
+        int link = from * n + to;
+        double drop;
+        double duplicate;
+        double reorder;
+        long held;
+        long requestLatency;
+        double dropReply;
+        long replyLatency;
+        SplittableRandom random = links[link];
+        synchronized (random) {
+            drop = random.nextDouble();
+            duplicate = random.nextDouble();
+            reorder = random.nextDouble();
+            held = random.nextLong(reorderDelay + 1);
+            requestLatency = latency[link].sample(random);
+            dropReply = random.nextDouble();
+            replyLatency = latency[to * n + from].sample(random);
+        }
+        int[] sides = side;
+        if (sides[from] != sides[to] || drop < dropRate) {
+            dropped.increment();
+            sleep(timeout);
+            return null;
+        }
+        sleep(requestLatency + (reorder < reorderRate ? held : 0));
+        Transport.Handler handler = handlers[to];
+        if (handler == null) {
+            return null;
+        }
+        Object reply;
+        try {
+            reply = copy(handler.handle(method, copy(req)));
+            if (duplicate < duplicateRate) {
+                duplicated.increment();
+                handler.handle(method, copy(req));
+            }
+        } catch (Exception e) {
+            return null;
+        }
+        if (dropReply < dropRate) {
+            dropped.increment();
+            sleep(timeout);
+            return null;
+        }
+        sleep(replyLatency);
+        return reply;
+    }
+
+    Object copy(Object msg) {
+        MessageCodec c = codec;
+        if (c == null || msg == null) {
+            return msg;
+        }
+        try {
+            byte[] data = c.encode(msg);
+            return c.decode(data, 0, data.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    void sleep(long micros) {
+        long nanos = (long) (micros * 1000 * timeScale);
+        if (nanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + nanos;
+        while (nanos > 0) {
+            LockSupport.parkNanos(nanos);
+            nanos = deadline - System.nanoTime();
+        }
+    }
+
+    /**
+     * Use latency for every link.
+     */
+    public void setLatency(Latency latency) {
+        Arrays.fill(this.latency, latency);
+    }
+
+    /**
+     * Use latency for messages from peer from to peer to.
+     */
+    public void setLatency(int from, int to, Latency latency) {
+        this.latency[from * n + to] = latency;
+    }
+
+    /**
+     * Drop each request, and each reply, with probability rate.
+     */
+    public void setDropRate(double rate) {
+        this.dropRate = rate;
+    }
+
+    /**
+     * Deliver each request a second time with probability rate.
+     */
+    public void setDuplicateRate(double rate) {
+        this.duplicateRate = rate;
+    }
+
+    /**
+     * Hold back each request with probability rate by up to maxDelay
+     * simulated microseconds on top of its latency.
+     */
+    public void setReordering(double rate, long maxDelay) {
+        this.reorderDelay = maxDelay;
+        this.reorderRate = rate;
+    }
+
+    /**
+     * How long a caller waits for a lost or refused message, in simulated
+     * microseconds.
+     */
+    public void setTimeout(long micros) {
+        this.timeout = micros;
+    }
+
+    /**
+     * Real time per simulated time: 1 sleeps the latencies as they are,
+     * 0.001 a thousand times faster, 0 not at all.
+     */
+    public void setTimeScale(double timeScale) {
+        this.timeScale = timeScale;
+    }
+
+    /**
+     * Pass messages through codec on the way, so that no object is shared
+     * between peers and serialization is paid for as over a real transport.
+     */
+    public void setCodec(MessageCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Split the peers into groups that can only talk among themselves. A
+     * peer in no group is cut off from everyone.
+     */
+    public void partition(int[]... groups) {
+        int[] sides = new int[n];
+        for (int i = 0; i < n; i++) {
+            sides[i] = -1 - i;
+        }
+        for (int g = 0; g < groups.length; g++) {
+            for (int id : groups[g]) {
+                sides[id] = g;
+            }
+        }
+        this.side = sides;
+    }
+
+    /**
+     * Let every peer talk to every other again.
+     */
+    public void heal() {
+        this.side = new int[n];
+    }
+
+    public long getSent() {
+        return sent.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getDuplicated() {
+        return duplicated.sum();
+    }
+}
@@ -0,0 +1,62 @@
+package paxos;
+import java.util.Arrays;
+
+/**
+ * A timed piece of work of one trace, e.g. one Paxos phase. Spans are only
+ * made for sampled traces; see Tracer for the null-safe way to use them.
+ */
+public class Span {
+    final String service; // e.g. paxos, kvpaxos-server
+    final String name;
+    final TraceContext context; // this span's ids, to be sent along with calls it makes
+    final long parentSpanId; // 0 for the root of a trace
+    final long start; // Unix epoch nanoseconds
+    long end;
+    String[] keys;
+    long[] values;
+    int attributes;
+
+    Span(String service, String name, TraceContext context, long parentSpanId, long start) {
+        this.service = service;
+        this.name = name;
+        this.context = context;
+        this.parentSpanId = parentSpanId;
+        this.start = start;
+        this.keys = new String[4];
+        this.values = new long[4];
+    }
+
+    public String service() {
+        return service;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public TraceContext context() {
+        return context;
+    }
+
+    /**
+     * Attach an attribute, e.g. the instance or proposal number.
+     */
+    public Span set(String key, long value) {
+        if (attributes == keys.length) {
+            keys = Arrays.copyOf(keys, attributes * 2);
+            values = Arrays.copyOf(values, attributes * 2);
+        }
+        keys[attributes] = key;
+        values[attributes] = value;
+        attributes++;
+        return this;
+    }
+
+    /**
+     * Stop the clock and hand the span to the Tracer's ring buffer.
+     */
+    public void end() {
+        end = Tracer.now();
+        Tracer.finish(this);
+    }
+}
@@ -0,0 +1,106 @@
+package paxos;
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Caches the RMI stub of every peer so that a call does not need a registry
+ * lookup first. A stub is resolved again when it fails or when the peer's
+ * entry in ports[] has changed; ports[] is shared with the owner and the
+ * tests rewrite it to make a peer deaf.
+ */
+public class StubCache<T extends Remote> {
+    String name; // name the stubs are bound to in the registry
+    int[] ports;
+    AtomicReferenceArray<Entry<T>> entries;
+    AtomicLong hits;
+    AtomicLong resolutions;
+
+    /*
+    A resolved stub together with the port it was resolved from
+     */
+    static class Entry<T> {
+        final int port;
+        final T stub;
+
+        Entry(int port, T stub) {
+            this.port = port;
+            this.stub = stub;
+        }
+    }
+
+    public StubCache(String name, int[] ports) {
+        this.name = name;
+        this.ports = ports;
+        this.entries = new AtomicReferenceArray<>(ports.length);
+        this.hits = new AtomicLong();
+        this.resolutions = new AtomicLong();
+    }
+
+    /**
+     * Return the stub of peer id, resolving it from the registry if there
+     * is no cached stub for the peer's current port.
+     */
+    public T get(int id) throws RemoteException, NotBoundException {
+        int port = ports[id];
+        Entry<T> entry = entries.get(id);
+        if (entry != null && entry.port == port) {
+            hits.incrementAndGet();
+            return entry.stub;
+        }
+        return resolve(id, port);
+    }
+
+    /**
+     * Drop the cached stub of peer id and look it up again.
+     */
+    public T refresh(int id) throws RemoteException, NotBoundException {
+        invalidate(id);
+        return resolve(id, ports[id]);
+    }
+
+    @SuppressWarnings("unchecked")
+    T resolve(int id, int port) throws RemoteException, NotBoundException {
+        resolutions.incrementAndGet();
+        Registry registry = LocateRegistry.getRegistry(port);
+        T stub = (T) registry.lookup(name);
+        entries.set(id, new Entry<>(port, stub));
+        return stub;
+    }
+
+    /**
+     * Whether get(id) would be answered from the cache.
+     */
+    public boolean isCached(int id) {
+        Entry<T> entry = entries.get(id);
+        return entry != null && entry.port == ports[id];
+    }
+
+    public void invalidate(int id) {
+        entries.set(id, null);
+    }
+
+    /**
+     * Whether a failed call never reached the peer, so it is safe to
+     * resolve the stub again and retry.
+     */
+    public static boolean notDelivered(Exception e) {
+        return e instanceof ConnectException || e instanceof ConnectIOException
+                || e instanceof NoSuchObjectException;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getResolutions() {
+        return resolutions.get();
+    }
+}
@@ -0,0 +1,40 @@
+package paxos;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * The part of a trace that travels with a request: the 128-bit trace id
+ * and the id of the span that the receiver's spans are children of. Only
+ * sampled traces travel, so an unsampled request carries null.
+ */
+public class TraceContext implements Serializable {
+    static final long serialVersionUID = 5L;
+    public final long traceHigh;
+    public final long traceLow;
+    public final long spanId;
+
+    public TraceContext(long traceHigh, long traceLow, long spanId) {
+        this.traceHigh = traceHigh;
+        this.traceLow = traceLow;
+        this.spanId = spanId;
+    }
+
+    /**
+     * Write trace, which may be null, for read().
+     */
+    public static void write(TraceContext trace, ByteBuf out) {
+        out.writeBoolean(trace != null);
+        if (trace != null) {
+            out.writeLong(trace.traceHigh);
+            out.writeLong(trace.traceLow);
+            out.writeLong(trace.spanId);
+        }
+    }
+
+    public static TraceContext read(ByteBuf in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new TraceContext(in.readLong(), in.readLong(), in.readLong());
+    }
+}
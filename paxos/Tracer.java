@@ -0,0 +1,198 @@
+package paxos;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-request tracing for the whole process. A client samples a share of
+ * its requests; a sampled request carries a TraceContext through the
+ * kvpaxos Request, the server's queue and the Paxos Requests of the
+ * instance that decides it, and every step records a Span. Finished spans
+ * go to a ring buffer that keeps the latest ones, and exportOtlp() writes
+ * them as OTLP JSON, which trace viewers and the OpenTelemetry collector
+ * read.
+ * <p>
+ * Unsampled requests carry null and every method here takes and returns
+ * null for them, so with a sample rate of 0 (the default, or the system
+ * property paxos.trace.sample) tracing costs a null check.
+ */
+public final class Tracer {
+    static final int DEFAULT_CAPACITY = 8192;
+    static volatile double sampleRate = Double.parseDouble(System.getProperty("paxos.trace.sample", "0"));
+    static volatile Span[] ring = new Span[DEFAULT_CAPACITY];
+    static final AtomicLong next = new AtomicLong(); // ring slot of the next finished span, modulo its length
+    static final long EPOCH_OFFSET = System.currentTimeMillis() * 1000000L - System.nanoTime();
+
+    private Tracer() {
+    }
+
+    /**
+     * Trace a share rate (0 to 1) of the requests started from now on.
+     */
+    public static void setSampleRate(double rate) {
+        sampleRate = rate;
+    }
+
+    /**
+     * Keep the latest spans spans, dropping what is kept now.
+     */
+    public static void setCapacity(int spans) {
+        ring = new Span[spans];
+        next.set(0);
+    }
+
+    static long now() {
+        return EPOCH_OFFSET + System.nanoTime();
+    }
+
+    static long id() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Start a new trace with probability sampleRate; null if not sampled.
+     */
+    public static Span root(String service, String name) {
+        double rate = sampleRate;
+        if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) {
+            return null;
+        }
+        return new Span(service, name, new TraceContext(id(), id(), id()), 0, now());
+    }
+
+    /**
+     * Start a span under parent; null if parent is.
+     */
+    public static Span child(String service, String name, TraceContext parent) {
+        if (parent == null) {
+            return null;
+        }
+        return new Span(service, name, new TraceContext(parent.traceHigh, parent.traceLow, id()), parent.spanId, now());
+    }
+
+    /**
+     * Record a span under parent that started at startNanos, a
+     * System.nanoTime(), and ends now.
+     */
+    public static void record(String service, String name, TraceContext parent, long startNanos) {
+        if (parent == null) {
+            return;
+        }
+        Span span = new Span(service, name, new TraceContext(parent.traceHigh, parent.traceLow, id()), parent.spanId,
+                EPOCH_OFFSET + startNanos);
+        span.end();
+    }
+
+    public static TraceContext context(Span span) {
+        return span == null ? null : span.context;
+    }
+
+    public static void set(Span span, String key, long value) {
+        if (span != null) {
+            span.set(key, value);
+        }
+    }
+
+    public static void end(Span span) {
+        if (span != null) {
+            span.end();
+        }
+    }
+
+    static void finish(Span span) {
+        Span[] spans = ring;
+        spans[(int) Math.floorMod(next.getAndIncrement(), (long) spans.length)] = span;
+    }
+
+    /**
+     * The spans in the ring buffer, oldest start first.
+     */
+    public static List<Span> spans() {
+        ArrayList<Span> spans = new ArrayList<>();
+        for (Span span : ring) {
+            if (span != null) {
+                spans.add(span);
+            }
+        }
+        spans.sort(Comparator.comparingLong(span -> span.start));
+        return spans;
+    }
+
+    public static void clear() {
+        setCapacity(ring.length);
+    }
+
+    /**
+     * Write the spans in the ring buffer to file as an OTLP JSON
+     * ExportTraceServiceRequest, one resource per service.
+     */
+    public static void exportOtlp(File file) throws IOException {
+        Map<String, List<Span>> byService = new LinkedHashMap<>();
+        for (Span span : spans()) {
+            byService.computeIfAbsent(span.service, s -> new ArrayList<>()).add(span);
+        }
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            out.print("{\"resourceSpans\":[");
+            boolean firstService = true;
+            for (Map.Entry<String, List<Span>> entry : byService.entrySet()) {
+                out.print(firstService ? "" : ",");
+                firstService = false;
+                out.print("{\"resource\":{\"attributes\":[{\"key\":\"service.name\",\"value\":{\"stringValue\":");
+                out.print(quote(entry.getKey()));
+                out.print("}}]},\"scopeSpans\":[{\"scope\":{\"name\":\"paxos.Tracer\"},\"spans\":[");
+                boolean firstSpan = true;
+                for (Span span : entry.getValue()) {
+                    out.print(firstSpan ? "\n" : ",\n");
+                    firstSpan = false;
+                    writeSpan(span, out);
+                }
+                out.print("]}]}");
+            }
+            out.println("]}");
+        }
+    }
+
+    static void writeSpan(Span span, PrintWriter out) {
+        TraceContext context = span.context;
+        out.print("{\"traceId\":\"" + String.format("%016x%016x", context.traceHigh, context.traceLow) + "\"");
+        out.print(",\"spanId\":\"" + String.format("%016x", context.spanId) + "\"");
+        if (span.parentSpanId != 0) {
+            out.print(",\"parentSpanId\":\"" + String.format("%016x", span.parentSpanId) + "\"");
+        }
+        out.print(",\"name\":" + quote(span.name) + ",\"kind\":1");
+        out.print(",\"startTimeUnixNano\":\"" + span.start + "\",\"endTimeUnixNano\":\"" + span.end + "\"");
+        out.print(",\"attributes\":[");
+        for (int i = 0; i < span.attributes; i++) {
+            out.print((i == 0 ? "" : ",") + "{\"key\":" + quote(span.keys[i])
+                    + ",\"value\":{\"intValue\":\"" + span.values[i] + "\"}}");
+        }
+        out.print("]}");
+    }
+
+    static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
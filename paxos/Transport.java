@@ -0,0 +1,32 @@
+package paxos;
+
+/**
+ * Carries request/response calls between peers. Paxos and kvpaxos talk to
+ * each other only through a Transport, so RMI is one implementation among
+ * others (see RmiTransport and NioTransport).
+ */
+public interface Transport {
+
+    /**
+     * Send method with req to peer id and wait for its reply. Returns null
+     * if the peer could not be reached or did not answer in time.
+     */
+    Object call(int id, String method, Object req);
+
+    /**
+     * Start accepting calls addressed to this peer and pass them to handler.
+     */
+    void serve(Handler handler);
+
+    /**
+     * Stop serving and drop all connections.
+     */
+    void close();
+
+    /**
+     * Dispatches an incoming call on the receiving peer.
+     */
+    interface Handler {
+        Object handle(String method, Object req) throws Exception;
+    }
+}
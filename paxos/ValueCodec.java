@@ -0,0 +1,44 @@
+package paxos;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Encodes the application values that Paxos agrees on. The binary codec
+ * writes them as opaque byte slices (see Payload).
+ */
+public interface ValueCodec {
+
+    void write(Object value, ByteBuf out) throws IOException;
+
+    Object read(ByteBuf in) throws IOException;
+
+    /**
+     * Java serialization, for values that have no compact encoding.
+     */
+    ValueCodec JAVA = new ValueCodec() {
+        public void write(Object value, ByteBuf out) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(value);
+            }
+            byte[] data = bytes.toByteArray();
+            out.ensure(data.length);
+            System.arraycopy(data, 0, out.array, out.writePos, data.length);
+            out.writePos += data.length;
+        }
+
+        public Object read(ByteBuf in) throws IOException {
+            try (ObjectInputStream ois = new ObjectInputStream(
+                    new ByteArrayInputStream(in.array, in.readPos, in.readable()))) {
+                Object value = ois.readObject();
+                in.readPos = in.writePos;
+                return value;
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+}